@@ -2,6 +2,7 @@ import java.io.*;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.Properties;
 import com.google.gson.*;
 import com.google.gson.annotations.SerializedName;
@@ -26,6 +27,12 @@ public class ClientHotelierMain {
     public static String exitMessage;
     public static String multicastAddress;
     public static MulticastSocket multicastSocket;
+    public static boolean compactWireFormat;
+    public static boolean binaryProtocol;
+
+    // Istanze Gson condivise: parsing delle risposte e visualizzazione formattata
+    private static final Gson gson = new Gson();
+    private static final Gson prettyGson = new GsonBuilder().setPrettyPrinting().create();
 
     // Oggetto di blocco per gestire l'accesso al gruppo multicast in base allo stato di login
     private static final Object loginLockForMultiCast = new Object();
@@ -75,6 +82,19 @@ public class ClientHotelierMain {
     
             // Inizializzazione di socketChannel per la connessione al server
             socketChannel = SocketChannel.open(new InetSocketAddress(hostname, serverTCPPort));
+
+            // Negozia il protocollo binario, se il server non lo supporta si continua con i comandi testuali
+            if (binaryProtocol) {
+                binaryProtocol = negotiateBinaryProtocol();
+            }
+
+            // Richiede al server le risposte in formato compatto, verranno formattate lato client solo per la stampa
+            // (con il protocollo binario le risposte sono sempre compatte)
+            if (binaryProtocol) {
+                compactWireFormat = true;
+            } else if (compactWireFormat) {
+                exchange(new Request("wireFormat", BinaryProtocol.WIRE_FORMAT).field("compact").encode());
+            }
     
             // Avvio del thread per ricevere dati tramite UDP
             udpReceiverThread = new Thread(new UDPReceiver());
@@ -146,19 +166,8 @@ public class ClientHotelierMain {
     }
         private static void closeConnection() {        
             try {
-                // Converti la richiesta in un array di byte
-                byte[] messageBytes = exitMessage.getBytes();
-                
-                // Prepara il buffer per la scrittura
-                buffer.clear();
-
-                // Scrivi la lunghezza del messaggio e il messaggio stesso nel buffer
-                buffer.putInt(messageBytes.length);
-                buffer.put(messageBytes);
-                buffer.flip(); // Prepara il buffer per la lettura
-
-                // Invia i dati sul canale SocketChannel
-                socketChannel.write(buffer);
+                // Invia il messaggio di terminazione nel protocollo in uso
+                writeFrame(binaryProtocol ? new byte[] {BinaryProtocol.CLOSE} : exitMessage.getBytes(StandardCharsets.UTF_8));
 
                 // Imposto lo stato a false per far terminare il thread prinicpale
                 stato = false;
@@ -170,11 +179,40 @@ public class ClientHotelierMain {
         }
         
     /*HANDLE */
-    private static String sendRequest(String request) throws IOException {
-        // Converti la richiesta in un array di byte
-        byte[] messageBytes = request.getBytes();
+    private static String sendRequest(Request request) throws IOException {
+        // Invia la richiesta, codificata nel protocollo negoziato, e attende la risposta completa
+        String reply = exchange(request.encode());
     
-        // Prepara il buffer per la scrittura
+        // Visualizza la risposta ricevuta, formattandola nel caso in cui il server la invii in formato compatto
+        String printable = reply;
+        if (compactWireFormat) {
+            try {
+                printable = prettyGson.toJson(JsonParser.parseString(reply));
+            } catch (JsonParseException e) {
+                // Risposta non JSON, viene stampata così com'è
+            }
+        }
+        synchronized(printSyncLock){
+            System.out.println("[CLIENT] Ricevuto: " + printable);
+        }    
+        // Restituisce la risposta come stringa
+        return reply;
+    }
+    // Chiede al server di passare al protocollo binario, restituisce false se il server non lo supporta
+    private static boolean negotiateBinaryProtocol() throws IOException {
+        String reply = exchange(new byte[] {0, 'H', 'B', (byte) BinaryProtocol.VERSION});
+        try {
+            JsonResponse response = gson.fromJson(reply, JsonResponse.class);
+            return response != null && response.getStatusCode() == BinaryProtocol.NEGOTIATED;
+        } catch (JsonParseException e) {
+            return false;
+        }
+    }
+    private static void writeFrame(byte[] messageBytes) throws IOException {
+        // Prepara il buffer per la scrittura, ingrandendolo se la richiesta non ci sta
+        if (buffer.capacity() < Integer.BYTES + messageBytes.length) {
+            buffer = ByteBuffer.allocate(Integer.BYTES + messageBytes.length);
+        }
         buffer.clear();
     
         // Scrivi la lunghezza del messaggio e il messaggio stesso nel buffer
@@ -183,48 +221,32 @@ public class ClientHotelierMain {
         buffer.flip(); // Prepara il buffer per la lettura
     
         // Invia i dati sul canale SocketChannel
-        socketChannel.write(buffer);
+        while (buffer.hasRemaining()) {
+            socketChannel.write(buffer);
+        }
+    }
+    private static String exchange(byte[] messageBytes) throws IOException {
+        // Invia il frame della richiesta
+        writeFrame(messageBytes);
     
-        // Prepara un StringBuilder per costruire la risposta
-        StringBuilder replyBuilder = new StringBuilder();
+        // Leggi la lunghezza della risposta (primi 4 byte del frame)
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(Integer.BYTES);
+        readFully(lengthBuffer);
+        int replyLength = lengthBuffer.flip().getInt();
     
-        // Prepara il buffer per la lettura
-        buffer.clear();
+        // Leggi esattamente replyLength byte, la risposta può arrivare in più letture
+        ByteBuffer replyBuffer = ByteBuffer.allocate(replyLength);
+        readFully(replyBuffer);
     
-        // Leggi i dati dal SocketChannel nel buffer
-        int bytesRead = socketChannel.read(buffer);
-        buffer.flip(); // Prepara il buffer per la lettura
-        int totalRead = bytesRead;
-    
-        // Leggi la lunghezza della risposta dal buffer
-        int replyLength = buffer.getInt();
-    
-        // Leggi la risposta dal buffer
-        byte[] replyBytes = new byte[bytesRead - Integer.BYTES];
-        buffer.get(replyBytes);
-        replyBuilder.append(new String(replyBytes));
-    
-        // Controllo se la risposta è stata letta completamente
-        if (totalRead < replyLength + Integer.BYTES) {
-            while (totalRead < replyLength) {
-                bytesRead = socketChannel.read(buffer);
-                totalRead += bytesRead;
-    
-                // Leggi i dati dal buffer
-                buffer.flip();
-                replyBytes = new byte[bytesRead];
-                buffer.get(replyBytes);
-                replyBuilder.append(new String(replyBytes));
-                buffer.clear();
+        // Decodifica la risposta solo quando è completa, per non spezzare caratteri multi-byte
+        return new String(replyBuffer.array(), StandardCharsets.UTF_8);
+    }
+    private static void readFully(ByteBuffer target) throws IOException {
+        while (target.hasRemaining()) {
+            if (socketChannel.read(target) == -1) {
+                throw new EOFException("Connessione chiusa dal server");
             }
         }
-    
-        // Visualizza la risposta ricevuta
-        synchronized(printSyncLock){
-            System.out.println("[CLIENT] Ricevuto: " + replyBuilder);
-        }    
-        // Restituisce la risposta come stringa
-        return replyBuilder.toString();
     }
     private static void handleRegistration() throws IOException {
         String userName;
@@ -240,7 +262,7 @@ public class ClientHotelierMain {
         }
     
         // Costruzione della richiesta di registrazione nel formato appropriato
-        String request = "register," + userName + "," + password;
+        Request request = new Request("register", BinaryProtocol.REGISTER).field(userName).field(password);
     
         // Invio della richiesta al server
         sendRequest(request);
@@ -258,15 +280,12 @@ public class ClientHotelierMain {
             password = userInput.readLine();
     
             // Costruzione della richiesta di login nel formato appropriato
-            String request = "login," + username + "," + password;
+            Request request = new Request("login", BinaryProtocol.LOGIN).field(username).field(password);
     
             // Invio della richiesta al server e ricezione della risposta come stringa JSON
             jsonString = sendRequest(request);
         }
     
-        // Creazione dell'oggetto Gson per il parsing della stringa JSON
-        Gson gson = new Gson();
-    
         // Parsing della stringa JSON nella classe JsonResponse
         JsonResponse response = gson.fromJson(jsonString, JsonResponse.class);
     
@@ -289,14 +308,11 @@ public class ClientHotelierMain {
     }
     private static void handleLogout() throws IOException {
         // Costruzione della richiesta di logout nel formato appropriato
-        String request = "logout," + username;
+        Request request = new Request("logout", BinaryProtocol.LOGOUT).field(username);
     
         // Invio della richiesta al server e ricezione della risposta come stringa JSON
         String jsonString = sendRequest(request);
     
-        // Creazione dell'oggetto Gson per il parsing della stringa JSON
-        Gson gson = new Gson();
-    
         // Parsing della stringa JSON nell'oggetto JsonResponse
         JsonResponse response = gson.fromJson(jsonString, JsonResponse.class);
     
@@ -328,7 +344,7 @@ public class ClientHotelierMain {
         }
     
         // Costruzione della richiesta di ricerca dell'hotel nel formato appropriato
-        String request = "searchHotel," + nomeHotel + "," + citta;
+        Request request = new Request("searchHotel", BinaryProtocol.SEARCH_HOTEL).field(nomeHotel).field(citta);
     
         // Invio della richiesta al server
         sendRequest(request);
@@ -343,14 +359,14 @@ public class ClientHotelierMain {
         }
     
         // Costruzione della richiesta per la ricerca di tutti gli hotel nella città specificata
-        String request = "searchAllHotels," + citta;
+        Request request = new Request("searchAllHotels", BinaryProtocol.SEARCH_ALL_HOTELS).field(citta);
     
         // Invio della richiesta al server
         sendRequest(request);
     }
     private static void handleShowMyBadge() throws IOException {
         // Costruzione della richiesta per mostrare i badge dell'utente attuale
-        String request = "showMyBadge," + username;
+        Request request = new Request("showMyBadge", BinaryProtocol.SHOW_MY_BADGE).field(username);
     
         // Invio della richiesta al server
         sendRequest(request);
@@ -381,14 +397,84 @@ public class ClientHotelierMain {
         }
     
         // Costruzione della richiesta per inserire una nuova recensione
-        String request = "insertReview," + username + "," + nomeHotel + "," + citta + "," + globalScore + "," + singleScores[0] + "." + singleScores[1] + "." + singleScores[2] + "." + singleScores[3];
+        Request request = new Request("insertReview", BinaryProtocol.INSERT_REVIEW).field(username).field(nomeHotel).field(citta).scores(globalScore, singleScores);
     
         // Invio della richiesta al server
         sendRequest(request);
     }  
    
     /*CLASSI */
+    private static class BinaryProtocol {
+        // Versione e codici del protocollo binario, devono coincidere con quelli del server.
+        // Attivazione: frame [0]['H']['B'][versione]; richieste: [codice (byte)][campi], le stringhe sono
+        // [lunghezza (unsigned short)][UTF-8] e i punteggi sono byte (0xFF se il valore inserito non è intero).
+        public static final int VERSION = 1;
+        // Status-code con cui il server conferma l'attivazione
+        public static final int NEGOTIATED = 208;
+
+        public static final byte REGISTER = 1;
+        public static final byte LOGIN = 2;
+        public static final byte LOGOUT = 3;
+        public static final byte SEARCH_HOTEL = 4;
+        public static final byte SEARCH_ALL_HOTELS = 5;
+        public static final byte INSERT_REVIEW = 6;
+        public static final byte SHOW_MY_BADGE = 7;
+        public static final byte WIRE_FORMAT = 8;
+        public static final byte CLOSE = 127;
+
+        public static final int NOT_AN_INTEGER = 0xFF;
+        // Valore inviato per i punteggi interi fuori dall'intervallo di un byte, rifiutati comunque dal server
+        public static final int OUT_OF_RANGE = 0xFE;
+    }
+    private static class Request {
+        // La richiesta viene costruita una sola volta e codificata come comando testuale ("comando,campo,...")
+        // oppure, se negoziato con il server, nel protocollo binario
+        private final StringBuilder text;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream binary = new DataOutputStream(bytes);
+
+        public Request(String command, byte opcode) {
+            this.text = new StringBuilder(command);
+            bytes.write(opcode);
+        }
+
+        public Request field(String value) throws IOException {
+            text.append(',').append(value);
+            byte[] encoded = String.valueOf(value).getBytes(StandardCharsets.UTF_8);
+            if (encoded.length > 0xFFFF) {
+                throw new IOException("Campo della richiesta troppo lungo");
+            }
+            binary.writeShort(encoded.length);
+            binary.write(encoded);
+            return this;
+        }
+
+        // Punteggio globale e punteggi per categoria: "globale,a.b.c.d" nel testo, un byte ciascuno nel binario
+        public Request scores(String globalScore, String[] singleScores) {
+            text.append(',').append(globalScore).append(',').append(String.join(".", singleScores));
+            writeScore(globalScore);
+            for (String singleScore : singleScores) {
+                writeScore(singleScore);
+            }
+            return this;
+        }
+
+        private void writeScore(String score) {
+            try {
+                int value = Integer.parseInt(score);
+                bytes.write(value < 0 || value > BinaryProtocol.OUT_OF_RANGE ? BinaryProtocol.OUT_OF_RANGE : value);
+            } catch (NumberFormatException e) {
+                bytes.write(BinaryProtocol.NOT_AN_INTEGER);
+            }
+        }
+
+        public byte[] encode() {
+            return binaryProtocol ? bytes.toByteArray() : text.toString().getBytes(StandardCharsets.UTF_8);
+        }
+    }
     public static class UDPReceiver implements Runnable {
+        // Numero di sequenza dell'ultima notifica ricevuta, per accorgersi di quelle perse
+        private long lastSequence = -1;
 
         @Override
         public void run() {
@@ -415,10 +501,8 @@ public class ClientHotelierMain {
                         multicastSocket.joinGroup(multicastAddress, networkInterface);
                         multicastSocket.receive(packet);
                         
-                        String message = new String(packet.getData(), 0, packet.getLength());
-                        synchronized(printSyncLock){
-                            System.out.println("[Client] Messaggio dal server (UDP): " + message);
-                        }
+                        String message = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+                        printRankingNotification(message);
                     } catch (SocketException e) {
                         // Interruzione del thread, ad esempio quando viene invocato interrupt()
                         if(Thread.currentThread().isInterrupted()){ // thread interrotto
@@ -438,6 +522,29 @@ public class ClientHotelierMain {
                 return;
             }
         }
+
+        // Una notifica contiene "#<numero di sequenza>" seguito da una riga "<città>\t<hotel>" per ogni città cambiata
+        private void printRankingNotification(String message) {
+            String[] lines = message.split("\n");
+            synchronized(printSyncLock){
+                try {
+                    long sequence = Long.parseLong(lines[0].substring(1));
+                    if (lastSequence >= 0 && sequence > lastSequence + 1) {
+                        System.out.println("[Client] Notifiche dal server perse: " + (sequence - lastSequence - 1));
+                    }
+                    lastSequence = sequence;
+                } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                    System.out.println("[Client] Messaggio dal server (UDP): " + message);
+                    return;
+                }
+                for (int i = 1; i < lines.length; i++) {
+                    String[] update = lines[i].split("\t", 2);
+                    if (update.length == 2) {
+                        System.out.println("[Client] Aggiornamento ranking locale per la citta: " + update[0] + ", nuovo primo Hotel: " + update[1]);
+                    }
+                }
+            }
+        }
     }
     private static class ClientTerminationHandler extends Thread {
         @Override
@@ -507,6 +614,8 @@ public class ClientHotelierMain {
         exitMessage = prop.getProperty("exitMessage");
         udpPort = Integer.parseInt(prop.getProperty("udpPort"));
         multicastAddress = prop.getProperty("multicastAddress");
+        compactWireFormat = Boolean.parseBoolean(prop.getProperty("compactWireFormat", "false"));
+        binaryProtocol = Boolean.parseBoolean(prop.getProperty("binaryProtocol", "false"));
     
         // Chiude lo stream di input
         input.close();
@@ -1,38 +1,85 @@
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.InetAddress;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
-import java.net.MulticastSocket;
+import java.net.StandardProtocolFamily;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.Channels;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.AbstractList;
+import java.util.BitSet;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Locale;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException; 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.HashSet;
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.BufferedWriter;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileWriter;
 import com.google.gson.*;
 import java.lang.reflect.*;
-import com.google.gson.reflect.*;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 public class ServerHotelierMain {
     // Percorso del file di configurazione.
@@ -42,32 +89,114 @@ public class ServerHotelierMain {
     private static String exitMessage;
     private static long maxDelay;
     private static int periodicDataUpdaterDelay;
-    private static int hotelRankingUpdateFrequency;
+    private static long rankingDebounceDelay;
+    // Numero massimo di elementi in una richiesta multipla (searchAllHotelsBatch, searchHotels, insertReviews)
+    private static int maxBatchItems;
     private static long timeThreshold;
+    private static long relevanceHalfLife;
+    // Costante di decadimento del punteggio di attualità (ln 2 / relevanceHalfLife), in 1/ms
+    private static double relevanceDecayRate;
 
     // Configurazioni di rete.
     private static int tcpPort;
     private static int bufSize;
+    private static int reactorThreads;
+    private static int requestExecutorThreads;
+    private static boolean useVirtualThreads;
+    private static int bufferPoolMaxPerClass;
+    private static int statsReportDelay;
+    private static boolean responseCacheEnabled;
+    // Dimensione massima (in byte) dei frame conservati nella cache delle risposte
+    private static long responseCacheMaxBytes;
+    // Numero massimo di hotel in una pagina di rankHotels
+    private static int maxPageSize;
     private static int udpPort = 4321;
     private static String udpAddress = "230.0.0.1";
+    private static int udpMaxDatagramSize = 1024;
 
     // Gestione del server socket e del selettore.
     private static ServerSocketChannel serverSocketChannel;
     private static Selector selector;
 
+    // Reactor del thread principale, che possiede il selettore su cui è registrato il ServerSocketChannel.
+    private static Reactor mainReactor;
+
+    // Reactor worker ai quali l'acceptor distribuisce le connessioni (round-robin), vuoto se si usa il solo selettore principale.
+    private static Reactor[] reactors = new Reactor[0];
+    private static int nextReactor = 0;
+
+    // Executor per la logica applicativa delle richieste, null se le richieste vengono gestite direttamente dal thread del selettore.
+    private static ExecutorService requestExecutor;
+
+    // Pool di ByteBuffer diretti per i buffer di lettura delle connessioni e per le risposte.
+    private static BufferPool bufferPool;
+
+    // Istanze Gson condivise (thread-safe), create una sola volta: risposte compatte, risposte formattate e file su disco.
+    // Le istanze per le risposte serializzano gli hotel con HotelWireAdapter, che omette la normalizzazione.
+    private static final HotelWireAdapter hotelWireAdapter = new HotelWireAdapter();
+    private static final Gson wireGson = new GsonBuilder().registerTypeAdapter(Hotel.class, hotelWireAdapter).create();
+    private static final Gson prettyWireGson = new GsonBuilder().registerTypeAdapter(Hotel.class, hotelWireAdapter).setPrettyPrinting().create();
+    private static final Gson diskGson = new GsonBuilder().setPrettyPrinting().create();
+    // Istanza compatta per i record del log delle scritture
+    private static final Gson logGson = new Gson();
+    // Formato delle risposte usato dalle connessioni finché il client non ne negozia un altro.
+    private static boolean compactWireFormat;
+
+    // Buffer di serializzazione delle risposte, uno per thread e riutilizzato tra le richieste.
+    private static final ThreadLocal<ReplySink> replySinks = ThreadLocal.withInitial(ReplySink::new);
+
+    // Cache delle risposte di ricerca già codificate, invalidata per città quando cambiano i dati o il ranking.
+    private static final ResponseCache responseCache = new ResponseCache();
+
     // File JSON degli hotel, degli utenti e delle recensioni.
     private static String HOTELS_JSON_FILE;
     private static String USERS_JSON_FILE;
     private static String REVIEWS_JSON_FILE;
+    private static String SNAPSHOT_MANIFEST_FILE;
+    private static String REVIEWS_BINARY_FILE;
+    private static String WAL_FILE;
+    private static boolean walEnabled;
+    // Snapshot binario delle recensioni, caricato all'avvio al posto di Reviews.json
+    private static boolean binarySnapshotEnabled;
+    private static long walSyncInterval;
 
     // Dati memorizzati usando ConcurrentHashMap per gestire concorrenza.
     private static ConcurrentHashMap<String, User> registeredUsers = new ConcurrentHashMap<>();
-    private static ConcurrentHashMap<String, ConcurrentLinkedQueue<Hotel>> hotelsByCity = new ConcurrentHashMap<>();
-    private static ConcurrentHashMap<String, ConcurrentLinkedQueue<Review>> reviews = new ConcurrentHashMap<>();
+    private static ConcurrentHashMap<String, CityRanking> hotelsByCity = new ConcurrentHashMap<>();
+    private static final ReviewStore reviews = new ReviewStore();
     private static ConcurrentHashMap<String, CityStats> cityStatsMap = new ConcurrentHashMap<>();
+    // Indice secondario degli hotel per (città, nome) e per id, mantenuto coerente con hotelsByCity
+    private static final HotelIndex hotelIndex = new HotelIndex();
+    // Indice invertito dei servizi offerti dagli hotel di ogni città, per le ricerche filtrate
+    private static final ServiceIndex serviceIndex = new ServiceIndex();
+    // Indice dei prefissi dei nomi degli hotel, per l'autocompletamento
+    private static final HotelNameIndex hotelNameIndex = new HotelNameIndex();
+    // Istante dell'ultima recensione di ogni utente per ogni hotel, usato per il controllo di timeThreshold
+    private static ConcurrentHashMap<String, Long> lastReviewTimes = new ConcurrentHashMap<>();
 
     // Pool di thread per gestire l'esecuzione concorrente.
     private static ScheduledExecutorService scheduler;
+    // Ricalcolo delle classifiche delle sole città modificate, attivato dagli inserimenti di recensioni
+    private static final HotelRankingUpdater rankingUpdater = new HotelRankingUpdater();
+    // Canale multicast per le notifiche di cambio del primo hotel, aperto una volta e riutilizzato
+    private static MulticastPublisher rankingPublisher;
+    // Log append-only di registrazioni e recensioni, compattato negli snapshot JSON da DataUpdater
+    private static WriteAheadLog writeAheadLog;
+    // Le scritture (registrazioni e recensioni) prendono il lock in lettura, lo snapshot lo prende in scrittura
+    // per il solo tempo necessario a copiare una vista coerente dei dati
+    private static final ReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+    // Posizione nel log dell'ultimo record scritto dal thread durante una scrittura (-1 se nessuno):
+    // l'fsync viene atteso dopo aver rilasciato il lock dello snapshot
+    private static final ThreadLocal<long[]> pendingLogPosition = ThreadLocal.withInitial(() -> new long[] {-1});
+    // Diventa true quando hotel, utenti e recensioni sono stati caricati completamente
+    private static volatile boolean dataLoaded;
+    // Manifest dell'ultimo snapshot completo, null se non è ancora stato scritto
+    private static SnapshotManifest lastSnapshot;
+    // Dati modificati dall'ultimo snapshot: il DataUpdater riscrive solo i file che ne hanno bisogno
+    private static final AtomicBoolean hotelsDirty = new AtomicBoolean();
+    private static final AtomicBoolean usersDirty = new AtomicBoolean();
+    // Recensioni inserite dall'ultimo snapshot, da accodare a quelle già salvate
+    private static final ConcurrentLinkedQueue<Review> pendingReviews = new ConcurrentLinkedQueue<>();
 
     // Oggetto di blocco per sincronizzare l'output su console.
     private static final Object printSyncLock = new Object();  
@@ -83,6 +212,9 @@ public class ServerHotelierMain {
             System.exit(1);
         }
 
+        // Pool dei buffer usati dalle connessioni, deve esistere prima che arrivi il primo client
+        bufferPool = new BufferPool(bufferPoolMaxPerClass);
+
         // Aggiungo un hook per gestire la terminazione del server
         try{
             Runtime.getRuntime().addShutdownHook(new ServerTerminationHandler(Thread.currentThread()));
@@ -93,15 +225,34 @@ public class ServerHotelierMain {
         }
 
 
-        // Recupero le informazioni dai file JSON
-        loadHotelsFromJSON();
-        loadUsersFromJSON();
-        loadReviewsFromJSON();
+        // Completa un eventuale snapshot interrotto e recupero le informazioni dai file JSON
+        recoverSnapshot();
+        loadData();
+        // Riapplica le scritture registrate nel log dopo l'ultimo snapshot, prima di servire qualsiasi richiesta
+        Set<Hotel> replayedHotels = replayWriteAheadLog();
+        rebuildRelevanceScores();
+        for (Hotel hotel : replayedHotels) {
+            updateHotelScoresAndRanking(hotel);
+        }
 
     
         // Crea un pool di thread per l'esecuzione periodica delle attività
         scheduler = Executors.newScheduledThreadPool(2); 
 
+        // Apre un nuovo segmento del log e pianifica gli fsync raggruppati
+        if (walEnabled) {
+            try {
+                writeAheadLog = WriteAheadLog.open(WAL_FILE, walSyncInterval == 0);
+            } catch (IOException e) {
+                System.err.println("Errore durante l'apertura del log delle scritture: " + WAL_FILE);
+                e.printStackTrace();
+                System.exit(1);
+            }
+            if (walSyncInterval > 0) {
+                scheduler.scheduleWithFixedDelay(writeAheadLog::sync, walSyncInterval, walSyncInterval, TimeUnit.MILLISECONDS);
+            }
+        }
+
         // Pianifica e avvia le attività periodiche, persiste i dati su json, aggiorna il ranking locale degli hotel per ogni città.
         scheduler.scheduleWithFixedDelay(
             new DataUpdater(),
@@ -110,19 +261,27 @@ public class ServerHotelierMain {
             TimeUnit.SECONDS
         );
         
-        scheduler.scheduleWithFixedDelay(
-            new HotelRankingUpdater(),
-            30,
-            hotelRankingUpdateFrequency, 
-            TimeUnit.SECONDS
-        );
+        // Le classifiche vengono ricalcolate solo per le città che ricevono recensioni, raggruppando gli aggiornamenti ravvicinati
+        rankingPublisher = new MulticastPublisher(udpAddress, udpPort, udpMaxDatagramSize);
+        rankingUpdater.start(scheduler);
+
+        // Stampa periodica delle statistiche interne del server (0 per disabilitarla)
+        if (statsReportDelay > 0) {
+            scheduler.scheduleWithFixedDelay(
+                new StatsReporter(),
+                statsReportDelay,
+                statsReportDelay,
+                TimeUnit.SECONDS
+            );
+        }
 
          
         // Si apre quindi un ServerSocketChannel per gestire le connessioni dei client
         // e un selettore per gestire l'I/O multiplexato dei canali
         try {
             serverSocketChannel = ServerSocketChannel.open();
-            selector = Selector.open(); 
+            mainReactor = new Reactor("main");
+            selector = mainReactor.getSelector(); 
             // Binding del ServerSocketChannel a una specifica porta TCP
             serverSocketChannel.bind(new InetSocketAddress(tcpPort));
             // Configuro il canale in modalita' non bloccante.
@@ -131,70 +290,26 @@ public class ServerHotelierMain {
             serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
             // Il server è ora in ascolto e pronto ad accettare connessioni dai client sulla porta specificata (tcpPort)
 
+            // Avvio dei reactor worker, ognuno con il proprio selettore e il proprio thread
+            reactors = new Reactor[reactorThreads];
+            for (int i = 0; i < reactorThreads; i++) {
+                reactors[i] = new Reactor("reactor-" + i);
+                reactors[i].start();
+            }
+
+            // Se configurato, la logica delle richieste viene eseguita fuori dai thread dei selettori
+            if (requestExecutorThreads > 0 || useVirtualThreads) {
+                requestExecutor = createRequestExecutor();
+            }
+
             synchronized(printSyncLock){
-                System.out.println("[SERVER] In ascolto su porta "+ tcpPort);
+                System.out.println("[SERVER] In ascolto su porta "+ tcpPort + " (reactor worker: " + reactorThreads + ")");
             }
             // Il server entra in un ciclo infinito nel quale:
             // 1)Attende (e accetta) richieste di connessione da parte dei client.
             // 2)Controlla (tramite il selettore) se ci sono canali
-            // pronti per essere letti o scritti.
-            while (!Thread.currentThread().isInterrupted()) {
-                selector.select();
-                
-                /*if (Thread.currentThread().isInterrupted()) {
-                    break; // Uscita dal ciclo se il thread è stato interrotto
-                }*/
-                // Ottieni le chiavi selezionate dal selettore
-                Set<SelectionKey> selectedKeys = selector.selectedKeys();
-                Iterator<SelectionKey> iterator = selectedKeys.iterator();
-
-                // Itera sulle chiavi selezionate
-                while (iterator.hasNext()) {
-                    SelectionKey key = iterator.next();
-
-                    // Controllo se sul canale associato alla chiave vi è la possibilita’ di accettare una nuova connessione.
-                    // Nel caso, la accetto e registro il canale sul selettore.
-                    if (key.isAcceptable()) {
-                        // Si gestisce l'accettazione di una nuova connessione.
-                        try{
-                            handleAccept();
-                        }
-                        catch(IOException e){
-                            System.err.println("Errore durante l'accettazione della connessione: " + e.getMessage());
-                            System.exit(1);
-                        }
-                    } 
-                    // Se sul canale ci sono dati pronti per essere letti, procedo con la lettura.
-                    else if (key.isReadable()) {
-                        synchronized(printSyncLock){
-                            System.out.println("[SERVER] Dati pronti per la lettura");
-                        }
-                        try{
-                            handleRead(key);
-                        }
-                        catch(IOException e){
-                            System.err.println("Errore durante la lettura: " + e.getMessage());
-                            System.exit(1);
-                        }
-                    } 
-                    // Se il canale e' pronto per la scrittura, posso inviare la risposta.
-                    else if(key.isWritable()){
-                        synchronized(printSyncLock){
-                            System.out.println("[SERVER] Dati pronti per la scrittura");
-                        }
-                        try{
-                            handleWrite(key);
-                        }
-                        catch(IOException e){
-                            System.err.println("[SERVER] Errore durante la scrittura: " + e.getMessage());
-                            System.exit(1);
-                        }                   
-                    }
-                    // Rimuove la chiave dal set delle chiavi pronte
-                    iterator.remove();
-
-                }
-            }
+            // pronti per essere letti o scritti (solo se non ci sono reactor worker, altrimenti se ne occupano loro).
+            mainReactor.run();
             return;
         } catch (IOException e) {
             e.printStackTrace();
@@ -204,145 +319,351 @@ public class ServerHotelierMain {
 
 
     /* HANDLE */
+    private static void processSelectedKeys(Selector selector) {
+        // Ottieni le chiavi selezionate dal selettore
+        Set<SelectionKey> selectedKeys = selector.selectedKeys();
+        Iterator<SelectionKey> iterator = selectedKeys.iterator();
+
+        // Itera sulle chiavi selezionate
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            // Rimuove la chiave dal set delle chiavi pronte
+            iterator.remove();
+
+            // La connessione potrebbe essere stata chiusa mentre si consegnavano le risposte dell'executor
+            if (!key.isValid()) {
+                continue;
+            }
+
+            // Controllo se sul canale associato alla chiave vi è la possibilita’ di accettare una nuova connessione.
+            // Nel caso, la accetto e registro il canale sul selettore.
+            if (key.isAcceptable()) {
+                // Si gestisce l'accettazione di una nuova connessione.
+                try{
+                    handleAccept();
+                }
+                catch(IOException e){
+                    System.err.println("Errore durante l'accettazione della connessione: " + e.getMessage());
+                    System.exit(1);
+                }
+            } 
+            // Se sul canale ci sono dati pronti per essere letti, procedo con la lettura.
+            // Con il pipelining un canale può essere pronto sia in lettura che in scrittura nella stessa selezione.
+            else {
+                if (key.isReadable()) {
+                    synchronized(printSyncLock){
+                        System.out.println("[SERVER] Dati pronti per la lettura");
+                    }
+                    try{
+                        handleRead(key);
+                    }
+                    catch(IOException e){
+                        System.err.println("Errore durante la lettura: " + e.getMessage());
+                        System.exit(1);
+                    }
+                } 
+                // Se il canale e' ancora aperto e pronto per la scrittura, posso inviare le risposte accodate.
+                if(key.isValid() && key.isWritable()){
+                    synchronized(printSyncLock){
+                        System.out.println("[SERVER] Dati pronti per la scrittura");
+                    }
+                    try{
+                        handleWrite(key);
+                    }
+                    catch(IOException e){
+                        System.err.println("[SERVER] Errore durante la scrittura: " + e.getMessage());
+                        System.exit(1);
+                    }                   
+                }
+            }
+        }
+    }
     private static void handleAccept() throws IOException {
         // Accetta la connessione dal client
         SocketChannel client = serverSocketChannel.accept();
+        if (client == null) {
+            // Nessuna connessione effettivamente pendente
+            return;
+        }
+        // Configura il canale del client in modalità non bloccante
+        client.configureBlocking(false);
+
+        if (reactors.length == 0) {
+            // Nessun reactor worker: il canale viene gestito direttamente dal selettore principale
+            registerClient(client, mainReactor);
+        } else {
+            // Assegna la connessione al prossimo reactor worker (round-robin), che la registrerà sul proprio selettore
+            reactors[nextReactor].assign(client);
+            nextReactor = (nextReactor + 1) % reactors.length;
+        }
+    }
+    private static void registerClient(SocketChannel client, Reactor reactor) throws IOException {
         // Crea un oggetto di stato per la corretta gestione della lettura e per memorizzare l'id del client
-        State state = new State(bufSize);
+        State state = new State(bufSize, reactor);
         synchronized(printSyncLock){
             System.out.println("[SERVER] Nuova connessione ricevuta, client: " + state.id);
         }
-        // Configura il canale del client in modalità non bloccante
-        client.configureBlocking(false);
         // Registra il canale del client presso il selettore per leggere dati dal client (OP_READ)
-        client.register(selector, SelectionKey.OP_READ, state);
+        client.register(reactor.getSelector(), SelectionKey.OP_READ, state);
     }
     private static void handleWrite(SelectionKey key) throws IOException {
         // Ottiene il SocketChannel e l'oggetto State associato alla chiave di selezione
         SocketChannel channel = (SocketChannel) key.channel();
         State state = (State) key.attachment();
     
-        // Prova a scrivere i dati contenuti nel buffer sul canale
-        channel.write(state.buffer);
-    
-        // Controlla se dopo la scrittura i dati nel buffer non sono stati completamente consumati
-        if (state.buffer.hasRemaining()){
-            // Se ci sono dati rimanenti nel buffer dopo la scrittura, compatta il buffer e termina la funzione
-            state.buffer.compact(); // Sposta i dati non scritti all'inizio del buffer
-            return; // Termina la funzione per ritentare più tardi
+        // Scrive con una sola gathering write tutte le risposte accodate (fino a MAX_GATHERED_REPLIES)
+        int gathered = Math.min(state.replies.size(), State.MAX_GATHERED_REPLIES);
+        ByteBuffer[] outgoing = new ByteBuffer[gathered];
+        Iterator<ByteBuffer> replyIterator = state.replies.iterator();
+        for (int i = 0; i < gathered; i++) {
+            outgoing[i] = replyIterator.next();
         }
+        channel.write(outgoing);
     
-        // Se la scrittura è stata completata, stampa un messaggio di conferma dell'invio al client
-        synchronized(printSyncLock){
-            System.out.println("[SERVER] Risposta inviata al client " + state.id);
+        // Rimuove dalla coda le risposte scritte completamente, quelle parziali verranno completate alla prossima scrittura
+        while (!state.replies.isEmpty() && !state.replies.peek().hasRemaining()) {
+            // La risposta inviata torna nel pool
+            bufferPool.release(state.replies.poll());
+            synchronized(printSyncLock){
+                System.out.println("[SERVER] Risposta inviata al client " + state.id);
+            }
         }
     
-        // Resetta il buffer per prepararsi alla prossima lettura
-        state.buffer.clear();
+        // Se il client aveva chiesto la chiusura e tutte le risposte sono state inviate si chiude la connessione
+        if (state.closeRequested && state.isIdle()) {
+            closeClient(key);
+            return;
+        }
     
-        // Imposta l'interesse del canale per le operazioni di lettura (OP_READ)
-        key.interestOps(SelectionKey.OP_READ);
+        // Aggiorna gli interessi del canale (OP_READ e/o OP_WRITE) in base a ciò che resta da fare
+        updateInterestOps(key, state);
     }
     private static void handleRead(SelectionKey key) throws IOException {
         // Ottiene il SocketChannel e l'oggetto State associato alla chiave di selezione
         SocketChannel channel = (SocketChannel) key.channel();
         State state = (State) key.attachment();
         
-        // Legge dati dal canale e li scrive nel buffer
-        state.count += channel.read(state.buffer);
-    
-        String messageString;
+        // Legge dati dal canale e li accoda nel buffer, dopo eventuali frame parziali delle letture precedenti
+        int read = channel.read(state.buffer);
     
         synchronized(printSyncLock){
             // Stampa un messaggio di lettura richiesta del client
             System.out.println("[SERVER] Lettura richiesta del client " + state.id);
+        }
             
-            // Verifica se la connessione con il client è stata chiusa
-            if (state.count == -1) {
-                System.out.println("[SERVER] Connessione con il client " + state.id + " chiusa.");
-                // Esegue la disconnessione dell'utente loggato tramite l'informazione relativa all'ID e chiude il canale
-                disconnectLoggedInUserById(state.id);
-                channel.close();
+        // Verifica se la connessione con il client è stata chiusa
+        if (read == -1) {
+            // Esegue la disconnessione dell'utente loggato tramite l'informazione relativa all'ID e chiude il canale
+            closeClient(key);
+            return;
+        }
+
+        // Estrae dal buffer tutti i frame completi (4 bytes di lunghezza + messaggio), un client può inviarne più di uno per lettura
+        state.buffer.flip(); // si passa da scrittura a lettura del buffer quindi chiamo la flip
+        while (state.buffer.remaining() >= Integer.BYTES && !state.closeRequested) {
+            // Legge la lunghezza senza consumarla, il frame potrebbe non essere ancora completo
+            int length = state.buffer.getInt(state.buffer.position());
+            if (length < 0 || length > State.MAX_FRAME_LENGTH) {
+                System.err.println("[SERVER] Frame non valido dal client " + state.id + ", lunghezza: " + length);
+                closeClient(key);
                 return;
             }
-            
-            // Verifica se non ha ancora letto la lunghezza del messaggio (4 bytes)
-            if (state.count < Integer.BYTES) return;
-            
-            // Se non ha ancora memorizzato la lunghezza del messaggio nell'oggetto State, la memorizza
-            if (state.length == 0) {
-                state.buffer.flip();
-                state.length = state.buffer.getInt();
-                state.buffer.compact();
+            // Verifica se ha ricevuto il messaggio completo, altrimenti si attende la prossima lettura
+            if (state.buffer.remaining() < Integer.BYTES + length) {
+                break;
             }
-    
-            // Verifica se ha ricevuto il messaggio completo, se non lo ha ancora fatto return 
-            if (state.count < Integer.BYTES + state.length) return;
-    
-            // Estrae il messaggio dal buffer
-            state.buffer.flip(); // si passa da scrittura a lettura del buffer quindi chiamo la flip
-            byte[] messageBytes = new byte[state.length];
-            state.buffer.get(messageBytes);
-            messageString = new String(messageBytes);
-            
-            // Stampa il messaggio ricevuto dal client
-            System.out.println("[SERVER] Ricevuto messaggio dal client " + state.id + ": " + messageString);
-    
-            // Verifica se il messaggio ricevuto è una richiesta di chiusura della connessione
-            if (messageString.equalsIgnoreCase(exitMessage)) {
-                System.out.println("[SERVER] Richiesta chiusura connessione da parte del client " + state.id);
-                disconnectLoggedInUserById(state.id);
-                channel.close();
-                System.out.println("[SERVER] Connessione con il client " + state.id + " chiusa.");
-                return;
+            state.buffer.getInt();
+            // Vista del solo frame corrente, il buffer di lettura avanza oltre il frame
+            ByteBuffer frame = state.buffer.duplicate();
+            frame.limit(frame.position() + length);
+            state.buffer.position(frame.limit());
+
+            Request request;
+            if (state.binaryProtocol) {
+                // Protocollo binario negoziato: i campi vengono decodificati direttamente dal buffer di lettura
+                synchronized(printSyncLock){
+                    System.out.println("[SERVER] Ricevuta richiesta binaria dal client " + state.id + ", codice: " + (frame.hasRemaining() ? frame.get(frame.position()) : -1));
+                }
+                if (BinaryProtocol.isClose(frame)) {
+                    synchronized(printSyncLock){
+                        System.out.println("[SERVER] Richiesta chiusura connessione da parte del client " + state.id);
+                    }
+                    state.closeRequested = true;
+                    break;
+                }
+                request = BinaryProtocol.decode(frame);
+            } else if (BinaryProtocol.isHello(frame)) {
+                // Il client chiede di passare al protocollo binario, i frame successivi verranno decodificati come binari
+                request = BinaryProtocol.negotiate(frame, state);
+            } else {
+                byte[] messageBytes = new byte[length];
+                frame.get(messageBytes);
+                String messageString = new String(messageBytes, StandardCharsets.UTF_8);
+
+                synchronized(printSyncLock){
+                    // Stampa il messaggio ricevuto dal client
+                    System.out.println("[SERVER] Ricevuto messaggio dal client " + state.id + ": " + messageString);
+                }
+
+                // Verifica se il messaggio ricevuto è una richiesta di chiusura della connessione
+                if (messageString.equalsIgnoreCase(exitMessage)) {
+                    synchronized(printSyncLock){
+                        System.out.println("[SERVER] Richiesta chiusura connessione da parte del client " + state.id);
+                    }
+                    // Si chiude dopo aver inviato le risposte alle richieste precedenti, i frame successivi vengono ignorati
+                    state.closeRequested = true;
+                    break;
+                }
+                request = requestState -> handleRequest(messageString, requestState);
             }
+
+            dispatchRequest(key, state, request);
+        }
+        // Sposta un eventuale frame parziale all'inizio del buffer per la prossima lettura
+        state.buffer.compact();
+        ensureFrameCapacity(state);
+
+        if (state.closeRequested && state.isIdle()) {
+            closeClient(key);
+            return;
+        }
+        updateInterestOps(key, state);
+    }
+    private static void ensureFrameCapacity(State state) {
+        // Se il buffer è pieno con un frame ancora incompleto lo si ingrandisce, altrimenti la lettura non potrebbe proseguire
+        if (state.buffer.hasRemaining()) {
+            return;
+        }
+        int required = state.buffer.capacity() * 2;
+        if (state.buffer.position() >= Integer.BYTES) {
+            required = Math.max(required, Integer.BYTES + state.buffer.getInt(0));
+        }
+        ByteBuffer larger = bufferPool.acquire(required);
+        state.buffer.flip();
+        larger.put(state.buffer);
+        bufferPool.release(state.buffer);
+        state.buffer = larger;
+    }
+    private static void dispatchRequest(SelectionKey key, State state, Request request) {
+        if (requestExecutor == null) {
+            // Prepara subito la risposta e la accoda per la scrittura
+            state.replies.add(buildReplyBuffer(request, state));
+            return;
+        }
+        // Le richieste vengono eseguite una alla volta per connessione, così le risposte restano nell'ordine delle richieste
+        state.pendingRequests.add(request);
+        if (!state.requestInFlight) {
+            submitNextRequest(key, state);
+        }
+    }
+    private static void submitNextRequest(SelectionKey key, State state) {
+        final Request request = state.pendingRequests.poll();
+        if (request == null) {
+            return;
+        }
+        state.requestInFlight = true;
+        try {
+            requestExecutor.execute(() -> {
+                ByteBuffer reply = null;
+                try {
+                    reply = buildReplyBuffer(request, state);
+                } catch (RuntimeException e) {
+                    System.err.println("[SERVER] Errore durante la gestione della richiesta del client " + state.id + ": " + e.getMessage());
+                    e.printStackTrace();
+                }
+                // La risposta viene restituita al selettore che possiede il canale
+                state.reactor.complete(key, reply);
+            });
+        } catch (RejectedExecutionException e) {
+            // L'executor è in fase di terminazione, la richiesta non verrà mai eseguita
+            state.requestInFlight = false;
+            state.pendingRequests.clear();
+            state.closeRequested = true;
+        }
+    }
+    private static void updateInterestOps(SelectionKey key, State state) {
+        int ops = 0;
+        // Si smette di leggere se il client ha chiesto la chiusura o ha troppe richieste in sospeso (contropressione)
+        if (!state.closeRequested && state.replies.size() + state.pendingRequests.size() < State.MAX_PENDING_REPLIES) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (!state.replies.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+    private static void completeReply(SelectionKey key, ByteBuffer reply) throws IOException {
+        // Eseguito dal thread del selettore: la connessione potrebbe essere stata chiusa nel frattempo
+        if (!key.isValid()) {
+            bufferPool.release(reply);
+            return;
+        }
+        if (reply == null) {
+            // La gestione della richiesta è fallita, si chiude la connessione
+            closeClient(key);
+            return;
+        }
+        State state = (State) key.attachment();
+        state.requestInFlight = false;
+        state.replies.add(reply);
+        // Avvia la prossima richiesta già ricevuta sulla stessa connessione
+        submitNextRequest(key, state);
+        updateInterestOps(key, state);
+    }
+    private static void closeClient(SelectionKey key) throws IOException {
+        State state = (State) key.attachment();
+        synchronized(printSyncLock){
+            System.out.println("[SERVER] Connessione con il client " + state.id + " chiusa.");
+        }
+        disconnectLoggedInUserById(state.id);
+        key.channel().close();
+
+        // Restituisce al pool il buffer di lettura e le risposte non ancora inviate
+        bufferPool.release(state.buffer);
+        state.buffer = null;
+        while (!state.replies.isEmpty()) {
+            bufferPool.release(state.replies.poll());
         }
-    
-        // Prepara la risposta e registra il canale per la scrittura
-        state.buffer.clear();
-        state.buffer = buildReplyBuffer(messageString, channel, state.id);
-        key.interestOps(SelectionKey.OP_WRITE);
-    
-        // Reimposta parametri length e count dell'oggetto state per la prossima lettura
-        state.length = 0;
-        state.count = 0;
     }
         private static void disconnectLoggedInUserById(int idClient){
             // Si scorre tutti gli utenti registrati nel sistema
             for (User user : registeredUsers.values()) {
                 // Si va alla ricerca dell'utente relativo a quel client e si disconnette
-                if (user.getIdClient() == idClient) {
-                    user.setLoggedIn(false);
-                    user.setIdClient(-1);
-                }
+                user.logoutClient(idClient);
             }
         }
-        private static ByteBuffer buildReplyBuffer(String request, SocketChannel socketChannel, int idClient) {
-            // Si ottiene la risposta al messaggio di richiesta
-            String replyString = handleRequest(request, socketChannel, idClient);
-
-            // Si converte la risposta in array di byte
-            byte[] replyBytes = replyString.getBytes();
-
-            // Si alloca quindi un nuovo ByteBuffer con la dimensione necessaria per contenere la risposta e la sua lunghezza
-            ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + replyBytes.length);
+        private static ByteBuffer buildReplyBuffer(Request request, State state) {
+            // Si ottiene la risposta al messaggio di richiesta e la si codifica nel formato negoziato dal client
+            Reply reply = request.handle(state);
+            return reply.toFrame(state.compactReplies);
+        }
+        private static ByteBuffer encodeReply(Reply reply, boolean compact) {
+            // Si serializza la risposta direttamente nel sink del thread corrente
+            ReplySink sink = replySinks.get();
+            sink.reset();
+            Gson gson = compact ? wireGson : prettyWireGson;
+            try {
+                JsonWriter writer = gson.newJsonWriter(sink.getWriter());
+                reply.writeTo(writer);
+                writer.flush();
+            } catch (IOException e) {
+                // Il sink è in memoria, un errore qui è un errore di programmazione
+                throw new UncheckedIOException(e);
+            }
 
-            // Posiziona la lunghezza della risposta come intero all'inizio del buffer, successivamente aggiunge i byte della risposta stessa
-            // ed infine si chiama la flip() per rendere il buffer pronto per una successiva lettura
-            buffer.putInt(replyBytes.length).put(replyBytes).flip();
-            // Restituisce il buffer pronto per la scrittura sul canale
-            return buffer;
+            // Copia il frame (lunghezza + risposta) in un ByteBuffer diretto preso dal pool, pronto per la scrittura sul canale
+            return sink.toFrame();
         }
 
-    private static String handleRequest(String request, SocketChannel clientSocket, int idClient) {
+    private static Reply handleRequest(String request, State state) {
         // Estrae i parametri dalla richiesta
         // Utilizzo del metodo split() con l'opzione limit per evitare elementi vuoti nell'array, caso di nomerichiesta,,, si andrà ad inserire stringhe vuote ""
         String[] parameters = request.split(",",-1);
         switch (parameters[0]) {
             case "register":
-                return register(parameters[1], parameters[2]);
+                return withSnapshotReadLock(() -> register(parameters[1], parameters[2]));
             case "login":
-                return login(parameters[1], parameters[2], idClient); 
+                return login(parameters[1], parameters[2], state.id); 
             case "logout":
                 return logout(parameters[1]); 
             case "searchHotel":
@@ -350,26 +671,106 @@ public class ServerHotelierMain {
             case "searchAllHotels":
                 return searchAllHotels(parameters[1]);
             case "insertReview":
-                return insertReview(parameters[1], parameters[2], parameters[3],parameters[4], Arrays.asList(parameters[5].split("\\.",-1)));
+                return withSnapshotReadLock(() -> insertReview(parameters[1], parameters[2], parameters[3],parameters[4], Arrays.asList(parameters[5].split("\\.",-1))));
             case "showMyBadge":
                 return showMyBadge(parameters[1]);
+            case "wireFormat":
+                return setWireFormat(parameters[1], state);
+            case "autocompleteHotels":
+                // autocompleteHotels,prefisso,città (vuota per tutte le città),numero massimo di risultati
+                if (parameters.length != 4) {
+                    return buildResponse(ServerResponse.INVALID_REQUEST, null);
+                }
+                return autocompleteHotels(parameters[1], parameters[2], parseCount(parameters[3]));
+            case "filterHotels": {
+                // filterHotels,città,servizi (separati da punti),rate minimo,pulizia,posizione,servizi,qualità minimi (vuoto per nessun minimo)
+                if (parameters.length != 3 + HotelFilter.SCORES) {
+                    return buildResponse(ServerResponse.INVALID_REQUEST, null);
+                }
+                float[] minimums = new float[HotelFilter.SCORES];
+                for (int i = 0; i < minimums.length; i++) {
+                    minimums[i] = HotelFilter.parseMinimum(parameters[3 + i]);
+                }
+                List<String> services = parameters[2].isEmpty() ? Collections.emptyList() : Arrays.asList(parameters[2].split("\\.", -1));
+                return filterHotels(parameters[1], new HotelFilter(services, minimums));
+            }
+            case "rankHotels":
+                // rankHotels,città,offset,limit,campi (separati da punti, vuoto per l'hotel completo)
+                if (parameters.length != 5) {
+                    return buildResponse(ServerResponse.INVALID_REQUEST, null);
+                }
+                return rankHotels(parameters[1], parseCount(parameters[2]), parseCount(parameters[3]), HotelWireAdapter.parseFields(parameters[4].split("\\.", -1)));
+            case "searchAllHotelsBatch": {
+                // Elenco di città
+                List<String> cities = new ArrayList<>();
+                for (String[] item : splitBatch(parameters, 1)) {
+                    cities.add(item[0]);
+                }
+                return searchAllHotelsBatch(cities);
+            }
+            case "searchHotels": {
+                // Coppie nome,città
+                List<String[]> items = splitBatch(parameters, 2);
+                return items == null ? buildResponse(ServerResponse.INVALID_REQUEST, null) : searchHotels(items);
+            }
+            case "insertReviews": {
+                // Gruppi username,nomeHotel,città,punteggioGlobale,punteggiSingoli (separati da punti) come in insertReview
+                List<String[]> items = splitBatch(parameters, 5);
+                if (items == null) {
+                    return buildResponse(ServerResponse.INVALID_REQUEST, null);
+                }
+                List<ReviewRequest> requests = new ArrayList<>(items.size());
+                for (String[] item : items) {
+                    requests.add(ReviewRequest.fromText(item[0], item[1], item[2], item[3], item[4]));
+                }
+                return insertReviews(requests);
+            }
             default:
                 // Per come è implementato il client questa porzione di codice non verrà mai eseguita, per robustezza ad eventuali cambiamenti futuri lato client è comunque presente
                 // Richiesta non valida
                 JsonObject data = new JsonObject();
                 data.addProperty("Rchiesta", "non valida" );
-                return toJson(ServerResponse.INVALID_REQUEST,data);
+                return buildResponse(ServerResponse.INVALID_REQUEST,data);
         }
 }
 
+        // Valore restituito da parseCount per un parametro che non è un intero non negativo
+        private static final int INVALID_COUNT = -1;
+
+        // Converte un parametro intero non negativo (offset, numero di risultati), INVALID_COUNT se non valido
+        private static int parseCount(String value) {
+            try {
+                int count = Integer.parseInt(value);
+                return count < 0 ? INVALID_COUNT : count;
+            } catch (NumberFormatException e) {
+                return INVALID_COUNT;
+            }
+        }
+        // Divide i parametri di una richiesta multipla in gruppi di fieldsPerItem campi, null se l'ultimo gruppo è incompleto
+        private static List<String[]> splitBatch(String[] parameters, int fieldsPerItem) {
+            int fields = parameters.length - 1;
+            // Una richiesta senza elementi arriva come "comando," con un unico parametro vuoto
+            if (fields == 1 && parameters[1].isEmpty()) {
+                return Collections.emptyList();
+            }
+            if (fields % fieldsPerItem != 0) {
+                return null;
+            }
+            List<String[]> items = new ArrayList<>(fields / fieldsPerItem);
+            for (int i = 1; i < parameters.length; i += fieldsPerItem) {
+                items.add(Arrays.copyOfRange(parameters, i, i + fieldsPerItem));
+            }
+            return items;
+        }
+
     
 /* GESTIONE RICHIESTE */
         /*Registrazione */
-        private static String register(String username, String password) {
+        private static Reply register(String username, String password) {
             // se lo username contiene spazi allora restituisci registrazione fallita
             if(username.contains(" ") || username.length() == 0){
                 ServerResponse serverResponse = ServerResponse.REGISTER_FAILED_INVALID_USERNAME;
-                return toJson(serverResponse, null);
+                return buildResponse(serverResponse, null);
             }
 
             // Controlla se l'username esiste già nell'elenco degli utenti registrati
@@ -381,7 +782,7 @@ public class ServerHotelierMain {
                 if (!isValidPassword(password)) {
                     // Password non soddisfa i requisiti di sicurezza
                     ServerResponse serverResponse = ServerResponse.REGISTER_FAILED_INVALID_PASSWORD;
-                    return toJson(serverResponse, null);
+                    return buildResponse(serverResponse, null);
                 }
         
                 // Effettua l'hash della password prima di salvarla
@@ -391,15 +792,23 @@ public class ServerHotelierMain {
                     System.exit(1);
                 }
                 User newUser = new User(username, hashedPassword);
-                registeredUsers.put(username, newUser);
+                // putIfAbsent perché più reactor possono registrare lo stesso username in contemporanea
+                if (registeredUsers.putIfAbsent(username, newUser) != null) {
+                    ServerResponse serverResponse = ServerResponse.REGISTER_FAILED_USERNAME_EXISTS;
+                    return buildResponse(serverResponse, null);
+                }
+                usersDirty.set(true);
+
+                // Rende durevole la registrazione prima di rispondere al client
+                logWrite(WriteAheadLog.USER_REGISTERED, newUser);
         
                 // Invia una risposta di successo al client
                 ServerResponse serverResponse = ServerResponse.REGISTER_SUCCESS;
-                return toJson(serverResponse, null);
+                return buildResponse(serverResponse, null);
             } else {
                 // L'username esiste già, invia un messaggio di errore al client
                 ServerResponse serverResponse = ServerResponse.REGISTER_FAILED_USERNAME_EXISTS;
-                return toJson(serverResponse, null);
+                return buildResponse(serverResponse, null);
             }
         }
             private static boolean isValidPassword(String password) {
@@ -456,7 +865,7 @@ public class ServerHotelierMain {
 
             }
         /*Login */
-        private static String login(String username, String password, int idClient) {
+        private static Reply login(String username, String password, int idClient) {
             // Verifica se l'username è registrato
             if (registeredUsers.containsKey(username)) {
                 User user = registeredUsers.get(username);
@@ -465,123 +874,232 @@ public class ServerHotelierMain {
                 if (user.isLoggedIn()) {
                     // L'utente è già loggato, invia un messaggio di errore al client
                     ServerResponse serverResponse = ServerResponse.LOGIN_FAILED_ALREADY_LOGGED_IN;
-                    return toJson(serverResponse, null);
+                    return buildResponse(serverResponse, null);
                 }
                 
                 // Verifica se la password fornita corrisponde a quella dell'utente
                 if (user.getPassword().equals(hashPassword(password))) {
-                    // La password è corretta, esegue dunque l'accesso e invia un messaggio di successo al client
-                    user.setLoggedIn(true); // Manteniamo traccia dello stato di accesso dell'utente lato server
-                    user.setIdClient(idClient); // Imposta l'ID del client per l'utente loggato, questo mi serve per identificare l'utente su quale client è loggato
+                    // La password è corretta, esegue dunque l'accesso e invia un messaggio di successo al client.
+                    // Lo stato di accesso e l'ID del client (che identifica su quale client è loggato l'utente) vengono
+                    // impostati insieme: se un altro client ha eseguito l'accesso nel frattempo il login fallisce
+                    if (!user.login(idClient)) {
+                        return buildResponse(ServerResponse.LOGIN_FAILED_ALREADY_LOGGED_IN, null);
+                    }
                     ServerResponse serverResponse = ServerResponse.LOGIN_SUCCESS;
-                    return toJson(serverResponse, null);
+                    return buildResponse(serverResponse, null);
                 } else {
                     // La password è errata, invia un messaggio di errore al client
                     ServerResponse serverResponse = ServerResponse.LOGIN_FAILED_PASSWORD_INCORRECT;
-                    return toJson(serverResponse, null);
+                    return buildResponse(serverResponse, null);
                 }
             } else {
                 // L'username non esiste, invia un messaggio di errore al client
                 ServerResponse serverResponse = ServerResponse.LOGIN_FAILED_USERNAME_DOES_NOT_EXIST;
-                return toJson(serverResponse, null);        
+                return buildResponse(serverResponse, null);        
             }
         }
         /*Logout */
-        private static String logout(String username) {
+        private static Reply logout(String username) {
             // Ottiene l'utente associato all'username dalla struttura dati degli utenti registrati
             User user = registeredUsers.get(username);
         
             // Verifica se l'utente esiste ed è attualmente loggato
-            if (user != null && user.isLoggedIn()) {
-                // Effettua il logout impostando isLoggedIn a false e azzerando l'ID del client ponendolo al valore di default -1
-                user.setLoggedIn(false);
-                user.setIdClient(-1);
-        
+            // Effettua il logout impostando isLoggedIn a false e azzerando l'ID del client ponendolo al valore di default -1
+            if (user != null && user.logout()) {
                 // Restituisci un messaggio di successo al client
-                return toJson(ServerResponse.LOGOUT_SUCCESS, null);
+                return buildResponse(ServerResponse.LOGOUT_SUCCESS, null);
             } else {
                 // In tal caso L'utente non è attualmente loggato, dunque si invia un messaggio di errore al client
-                return toJson(ServerResponse.LOGOUT_FAILED_NOT_LOGGED_IN, null);
+                return buildResponse(ServerResponse.LOGOUT_FAILED_NOT_LOGGED_IN, null);
             }
         }
          /*Cerca hotel */
-        private static String searchHotel(String nomeHotel, String citta) {
+        private static Reply searchHotel(String nomeHotel, String citta) {
             // Ottiene la lista degli hotel associati alla città fornita
-            ConcurrentLinkedQueue<Hotel> hotelsInCity = hotelsByCity.get(citta);
+            CityRanking hotelsInCity = hotelsByCity.get(citta);
         
             // Verifica se ci sono hotel per quella città
             if (hotelsInCity == null) {
                 // Non ci sono hotel per quella città, allora restituisci un messaggio di errore al client
-                return toJson(ServerResponse.HOTEL_SEARCH_FAILED_CITY_NOT_FOUND, null);
+                return buildResponse(ServerResponse.HOTEL_SEARCH_FAILED_CITY_NOT_FOUND, null);
             }
             
-            Hotel foundHotel = null;
-            // Cerca l'hotel per nome nella lista degli hotel per quella città
-            for (Hotel hotel : hotelsInCity) {
-                // Confronta i nomi degli hotel ignorando differenze tra maiuscole e minuscole
-                if (hotel.getName().equalsIgnoreCase(nomeHotel)) {
-                    foundHotel = hotel;
-                    break; // Interrompe il ciclo una volta trovato l'hotel
-                }
-            }
+            // Cerca l'hotel per nome (ignorando differenze tra maiuscole e minuscole) tramite l'indice della città
+            Hotel foundHotel = hotelIndex.find(citta, nomeHotel);
         
             if (foundHotel != null) {
-                // Se l'hotel è stato trovato, serializza l'oggetto Hotel in formato JSON
-                Gson gson = new GsonBuilder().setPrettyPrinting().create();
-                String hotelJson = gson.toJson(foundHotel);
-        
-                // Converte la stringa JSON in un oggetto JsonObject
-                JsonObject nestedData = gson.fromJson(hotelJson, JsonObject.class);
-
-                // Rimuove la parte relativa alla normalizzazione dall'oggetto JsonObject che non è di interessa al client
-                nestedData.remove("normalization");
-        
-                // Restituisce un messaggio di successo al client con i dati dell'hotel trovato
-                return toJson(ServerResponse.HOTEL_SEARCH_SUCCESS, nestedData);
+                // Restituisce un messaggio di successo al client con i dati dell'hotel trovato, scritti direttamente dall'adapter
+                final Hotel hotel = foundHotel;
+                Reply reply = buildStreamedResponse(ServerResponse.HOTEL_SEARCH_SUCCESS, writer -> hotelWireAdapter.write(writer, hotel));
+                // La risposta codificata viene riutilizzata finché i dati della città non cambiano
+                return responseCache.cacheable("hotel\0" + citta + "\0" + hotel.getName().toLowerCase(Locale.ROOT), citta, reply);
             } else {
                 // Se l'hotel non è stato trovato, invia una risposta di "non trovato" al client
-                return toJson(ServerResponse.HOTEL_SEARCH_FAILED_NOT_FOUND_IN_CITY, null);
+                return buildResponse(ServerResponse.HOTEL_SEARCH_FAILED_NOT_FOUND_IN_CITY, null);
             }
         }
         /*Cerca tutti gli hotel */
-        private static String searchAllHotels(String citta) {
+        private static Reply searchAllHotels(String citta) {
             // Ottiene la lista degli hotel associati alla città fornita
-            ConcurrentLinkedQueue<Hotel> hotelsInCity = hotelsByCity.get(citta);
+            CityRanking hotelsInCity = hotelsByCity.get(citta);
         
             // Verifica se ci sono hotel per quella città
             if (hotelsInCity == null) {
                 // Non ci sono hotel per quella città, restituisce un messaggio di errore al client
-                return toJson(ServerResponse.ALL_HOTEL_SEARCH_FAILED_CITY_NOT_FOUND, null);
+                return buildResponse(ServerResponse.ALL_HOTEL_SEARCH_FAILED_CITY_NOT_FOUND, null);
             }
         
-            // Inizializza una nuova istanza di Gson per la manipolazione JSON
-            Gson gson = new GsonBuilder().setPrettyPrinting().create();
-            
-            // Crea un array JSON per contenere tutti gli hotel della città
-            JsonArray hotelsArray = new JsonArray();
-            
-            // Itera gli hotel nella città e li aggiunge all'array JSON
-            for (Hotel hotel : hotelsInCity) {
-                String hotelJson = gson.toJson(hotel);
-                JsonObject nestedData = gson.fromJson(hotelJson, JsonObject.class);
-                // Rimuove la parte relativa alla normalizzazione dall'oggetto JsonObject che non è di interessa al client
-                nestedData.remove("normalization");
-                hotelsArray.add(nestedData);
+            // Classifica corrente della città, immutabile: non può cambiare durante la serializzazione.
+            // La versione della cache si legge prima, il ranking viene pubblicato prima di incrementarla
+            long version = responseCache.versionOf(citta);
+            Hotel[] rankedHotels = hotelsInCity.snapshot();
+
+            // Restituisce un messaggio di successo al client con la lista degli hotel, serializzati uno alla volta
+            // direttamente nel buffer della risposta senza costruire alberi JSON intermedi
+            Reply reply = buildStreamedResponse(ServerResponse.ALL_HOTELS_SUCCESS, writer -> {
+                writer.beginObject();
+                writer.name("hotels");
+                writer.beginArray();
+                for (Hotel hotel : rankedHotels) {
+                    hotelWireAdapter.write(writer, hotel);
+                }
+                writer.endArray();
+                writer.endObject();
+            });
+            // La risposta codificata viene riutilizzata finché i dati o il ranking della città non cambiano
+            return responseCache.cacheable("city\0" + citta, citta, version, reply);
+        }
+        /*Autocompletamento dei nomi degli hotel */
+        private static Reply autocompleteHotels(String prefix, String citta, int limit) {
+            if (!citta.isEmpty() && !hotelsByCity.containsKey(citta)) {
+                return buildResponse(ServerResponse.AUTOCOMPLETE_FAILED_CITY_NOT_FOUND, null);
             }
-        
-            // Crea un oggetto JSON contenente la lista di hotel in formato array
-            JsonObject jsonHotels = new JsonObject();
-            jsonHotels.add("hotels", hotelsArray);
-            
-            // Restituisce un messaggio di successo al client con la lista degli hotel in formato JSON
-            return toJson(ServerResponse.ALL_HOTELS_SUCCESS, jsonHotels);
+            // INVALID_COUNT è negativo, quindi copre anche i valori non interi
+            if (limit <= 0) {
+                return buildResponse(ServerResponse.AUTOCOMPLETE_FAILED_INVALID_LIMIT, null);
+            }
+
+            // Il prefisso viene cercato all'inizio di ogni parola del nome, i migliori per rankingScore vengono restituiti
+            // con i soli campi utili ai suggerimenti, senza descrizioni né servizi
+            List<Hotel> matches = hotelNameIndex.complete(citta, prefix, limit);
+            return buildStreamedResponse(ServerResponse.AUTOCOMPLETE_SUCCESS, writer -> {
+                writer.beginObject();
+                writer.name("hotels");
+                writer.beginArray();
+                for (Hotel hotel : matches) {
+                    hotelWireAdapter.write(writer, hotel, HotelWireAdapter.FIELD_ID | HotelWireAdapter.FIELD_NAME | HotelWireAdapter.FIELD_CITY | HotelWireAdapter.FIELD_RANKING_SCORE);
+                }
+                writer.endArray();
+                writer.endObject();
+            });
+        }
+        /*Ricerca filtrata per servizi e punteggi minimi */
+        private static Reply filterHotels(String citta, HotelFilter filter) {
+            CityRanking hotelsInCity = hotelsByCity.get(citta);
+            if (hotelsInCity == null) {
+                return buildResponse(ServerResponse.FILTER_FAILED_CITY_NOT_FOUND, null);
+            }
+            if (!filter.hasValidMinimums()) {
+                return buildResponse(ServerResponse.FILTER_FAILED_INVALID_SCORE, null);
+            }
+
+            // Gli hotel che offrono tutti i servizi richiesti si ottengono intersecando le bitmap della città,
+            // i punteggi minimi vengono controllati solo su questi scorrendo la classifica corrente.
+            // Come in searchAllHotels la versione della cache si legge prima della classifica
+            long version = responseCache.versionOf(citta);
+            BitSet candidates = serviceIndex.matching(citta, filter.services);
+            List<Hotel> matches = new ArrayList<>();
+            for (Hotel hotel : hotelsInCity.snapshot()) {
+                int position = serviceIndex.positionOf(citta, hotel);
+                if (position >= 0 && candidates.get(position) && filter.acceptsScores(hotel.getScores())) {
+                    matches.add(hotel);
+                }
+            }
+
+            Reply reply = buildStreamedResponse(ServerResponse.FILTER_SUCCESS, writer -> {
+                writer.beginObject();
+                writer.name("hotels");
+                writer.beginArray();
+                for (Hotel hotel : matches) {
+                    hotelWireAdapter.write(writer, hotel);
+                }
+                writer.endArray();
+                writer.endObject();
+            });
+            // Come le altre ricerche, la risposta resta in cache finché i dati della città non cambiano. Servizi sconosciuti
+            // e minimi arbitrari genererebbero una chiave nuova per ogni richiesta: si mettono in cache solo i filtri canonici
+            if (!filter.isCanonical()) {
+                return reply;
+            }
+            return responseCache.cacheable("filter\0" + citta + "\0" + filter.key(), citta, version, reply);
+        }
+        /*Classifica di una città */
+        private static Reply rankHotels(String citta, int offset, int limit, int fields) {
+            CityRanking hotelsInCity = hotelsByCity.get(citta);
+            if (hotelsInCity == null) {
+                return buildResponse(ServerResponse.RANKING_FAILED_CITY_NOT_FOUND, null);
+            }
+            // INVALID_COUNT è negativo, quindi copre anche i valori non interi
+            if (offset < 0 || limit < 0) {
+                return buildResponse(ServerResponse.RANKING_FAILED_INVALID_RANGE, null);
+            }
+            if (fields < 0) {
+                return buildResponse(ServerResponse.RANKING_FAILED_UNKNOWN_FIELD, null);
+            }
+
+            // La pagina viene letta dalla classifica già ordinata, senza copiare né riordinare gli hotel.
+            // Come in searchAllHotels la versione della cache si legge prima della classifica
+            long version = responseCache.versionOf(citta);
+            Hotel[] rankedHotels = hotelsInCity.snapshot();
+            int from = Math.min(offset, rankedHotels.length);
+            int to = Math.min(from + Math.min(limit, maxPageSize), rankedHotels.length);
+
+            Reply reply = buildStreamedResponse(ServerResponse.RANKING_SUCCESS, writer -> {
+                writer.beginObject();
+                writer.name("city").value(citta);
+                writer.name("total").value(rankedHotels.length);
+                writer.name("offset").value(from);
+                writer.name("hotels");
+                writer.beginArray();
+                for (int i = from; i < to; i++) {
+                    // Con una proiezione si leggono solo i campi richiesti, descrizioni e servizi non vengono serializzati
+                    hotelWireAdapter.write(writer, rankedHotels[i], fields);
+                }
+                writer.endArray();
+                writer.endObject();
+            });
+            // Ogni pagina e proiezione ha la propria voce in cache, invalidata insieme alle altre risposte della città.
+            // La chiave usa i limiti effettivi della pagina, così richieste equivalenti condividono la stessa voce
+            return responseCache.cacheable("rank\0" + citta + "\0" + from + "\0" + to + "\0" + fields, citta, version, reply);
         }
         /*Inserimento recensione hotel */
-        private static String insertReview(String username, String nomeHotel, String citta, String globalScore, List<String> singleScores) {
+        private static Reply insertReview(String username, String nomeHotel, String citta, String globalScore, List<String> singleScores) {
+            // I punteggi testuali vengono convertiti subito, gli errori di formato vengono segnalati dopo i controlli su utente e hotel
+            int[] singleScoresValues = new int[singleScores.size()];
+            for (int i = 0; i < singleScoresValues.length; i++) {
+                singleScoresValues[i] = parseScore(singleScores.get(i));
+            }
+            return insertReview(username, nomeHotel, citta, parseScore(globalScore), singleScoresValues, null);
+        }
+            // Valore di un punteggio che non è un numero intero
+            private static final int SCORE_NOT_AN_INTEGER = Integer.MIN_VALUE;
+
+            private static int parseScore(String score) {
+                try {
+                    return Integer.parseInt(score);
+                } catch (NumberFormatException e) {
+                    return SCORE_NOT_AN_INTEGER;
+                }
+            }
+        private static Reply insertReview(String username, String nomeHotel, String citta, int globalScore, int[] singleScores) {
+            return insertReview(username, nomeHotel, citta, globalScore, singleScores, null);
+        }
+        // Con batch diverso da null la rinormalizzazione dell'hotel viene rimandata alla fine della richiesta multipla
+        private static Reply insertReview(String username, String nomeHotel, String citta, int globalScore, int[] singleScores, ReviewBatch batch) {
             // Verifica se l'utente è "null" (non loggato)
             if(username.equals("null")){
                 // Invia un messaggio di errore al client indicando utente non è loggato
-                return toJson(ServerResponse.REVIEW_INSERT_FAILED_NOT_LOGGED_IN_CLIENT_CHECK,null);
+                return buildResponse(ServerResponse.REVIEW_INSERT_FAILED_NOT_LOGGED_IN_CLIENT_CHECK,null);
             }
             
             // Ottiene l'utente dalla struttura dati apposita
@@ -589,212 +1107,259 @@ public class ServerHotelierMain {
             if(user == null){
                 // Tipicamente non dovrebbe mai verificarsi questa condizione per come è stato implementato il client, tengo comunque questo controllo per eventuali modifiche future che potrebbero essere fatte lato client, il controllo lato server comuque è presente
                 // L'utente non è attualmente loggato, invia un messaggio di errore al client
-                return toJson(ServerResponse.REVIEW_INSERT_FAILED_NOT_LOGGED_IN_SERVER_CHECK,null);
+                return buildResponse(ServerResponse.REVIEW_INSERT_FAILED_NOT_LOGGED_IN_SERVER_CHECK,null);
             }
 
             if (user.isLoggedIn()) {
                 // L'utente è loggato, si procede con l'inserimento della recensione
-                ConcurrentLinkedQueue<Hotel> hotelsInCity;
+                CityRanking hotelsInCity;
 
                 // Controlla se la città specificata esiste
                 if( (hotelsInCity = hotelsByCity.get(citta)) == null){
                     // Non esistono hotel per quella citta
-                    return toJson(ServerResponse.REVIEW_INSERT_FAILED_CITY_NOT_FOUND,null);
+                    return buildResponse(ServerResponse.REVIEW_INSERT_FAILED_CITY_NOT_FOUND,null);
                 }
 
-                // Trova l'hotel specificato nella città
-                Hotel foundHotel = null;
-                for (Hotel hotel : hotelsInCity) {
-                    if (hotel.getName().equals(nomeHotel)) {
-                        foundHotel = hotel;
-                        break;
-                    }
-                }
+                // Trova l'hotel specificato nella città tramite l'indice
+                Hotel foundHotel = hotelIndex.find(citta, nomeHotel);
 
                 if(foundHotel == null){
                     // Se l'hotel non è stato trovato, invia una messaggio di not found al client
-                    return toJson(ServerResponse.REVIEW_INSERT_FAILED_HOTEL_NOT_FOUND,null);
+                    return buildResponse(ServerResponse.REVIEW_INSERT_FAILED_HOTEL_NOT_FOUND,null);
                 }
+                // Da qui in poi si usa il nome registrato dell'hotel, così le recensioni restano associate alla stessa chiave
+                nomeHotel = foundHotel.getName();
 
                 // Controlla il punteggio globale (verifica se è un intero e se è compreso tra 0 e 5 inclusi)
-                int globalScoreInt;
-                try {
-                    globalScoreInt = Integer.parseInt(globalScore);
-                    if (globalScoreInt < 0 || globalScoreInt > 5) {
-                        // Il punteggio globale non è valido, invia un messaggio di errore al client
-                        return toJson(ServerResponse.REVIEW_INSERT_FAILED_GLOBAL_SCORE_OUT_OF_RANGE, null);
-                    }
-                } catch (NumberFormatException e) {
+                int globalScoreInt = globalScore;
+                if (globalScoreInt == SCORE_NOT_AN_INTEGER) {
+                    // Il punteggio globale non è valido, invia un messaggio di errore al client
+                    return buildResponse(ServerResponse.REVIEW_INSERT_FAILED_GLOBAL_SCORE_NOT_INT, null);
+                }
+                if (globalScoreInt < 0 || globalScoreInt > 5) {
                     // Il punteggio globale non è valido, invia un messaggio di errore al client
-                    return toJson(ServerResponse.REVIEW_INSERT_FAILED_GLOBAL_SCORE_NOT_INT, null);
+                    return buildResponse(ServerResponse.REVIEW_INSERT_FAILED_GLOBAL_SCORE_OUT_OF_RANGE, null);
                 }
 
                 // Controlla i punteggi singoli
                     // Controlla numero di punteggi singoli, questa condizione non dovrebbe verificarsi mai per come è fatto il client
-                    if (singleScores.size() != 4) {
+                    if (singleScores.length != 4) {
                         // Il numero di punteggi singoli non è corretto, invia un messaggio di errore al client
-                        return toJson(ServerResponse.REVIEW_INSERT_FAILED_SINGLE_SCORES_INVALID_NUMBER_OF_PARAMETERS, null);
+                        return buildResponse(ServerResponse.REVIEW_INSERT_FAILED_SINGLE_SCORES_INVALID_NUMBER_OF_PARAMETERS, null);
                     }
 
                     // Crea un array di interi per salvare i punteggi individuali
                     int[] singleScoresInts = new int[4];
                     // Itera sull'elenco dei punteggi individuali
-                    for (int i = 0; i < singleScores.size(); i++) {
-                        try {
-                            // Converte il punteggio individuale in un intero
-                            int singleScoreInt = Integer.parseInt(singleScores.get(i));
-
-                            // Controlla che il valore del punteggio individuale sia valido (compreso tra 0 e 5 inclusi)
-                            if (singleScoreInt < 0 || singleScoreInt > 5) {
-                                // Il valore di un punteggio individuale non è valido, invia un messaggio di errore al client
-                                return toJson(ServerResponse.REVIEW_INSERT_FAILED_SINGLE_SCORE_OUT_OF_RANGE, null);
-                            }
-
-                            // Salva il punteggio individuale nell'array
-                            singleScoresInts[i] = singleScoreInt;
-                        } catch (NumberFormatException e) {
+                    for (int i = 0; i < singleScores.length; i++) {
+                        int singleScoreInt = singleScores[i];
+                        if (singleScoreInt == SCORE_NOT_AN_INTEGER) {
                             // Il valore di un punteggio individuale non è un intero, invia un messaggio di errore al client
-                            return toJson(ServerResponse.REVIEW_INSERT_FAILED_SINGLE_SCORE_NOT_INT, null);
+                            return buildResponse(ServerResponse.REVIEW_INSERT_FAILED_SINGLE_SCORE_NOT_INT, null);
                         }
-                    }
 
-                // Ottiene la coda delle recensioni per l'hotel specifico e crea una nuova coda se non esiste inserendo in reviews una nuova coppia chiave valore
-                ConcurrentLinkedQueue<Review> hotelReviews = reviews.get(nomeHotel);
-                if (hotelReviews == null) {
-                    hotelReviews = new ConcurrentLinkedQueue<>();
-                    reviews.put(nomeHotel, hotelReviews);
-                }
+                        // Controlla che il valore del punteggio individuale sia valido (compreso tra 0 e 5 inclusi)
+                        if (singleScoreInt < 0 || singleScoreInt > 5) {
+                            // Il valore di un punteggio individuale non è valido, invia un messaggio di errore al client
+                            return buildResponse(ServerResponse.REVIEW_INSERT_FAILED_SINGLE_SCORE_OUT_OF_RANGE, null);
+                        }
 
+                        // Salva il punteggio individuale nell'array
+                        singleScoresInts[i] = singleScoreInt;
+                    }
 
                 long currentTime = System.currentTimeMillis();
 
-                // Controlla se l'utente può inserire una nuova recensione
-                for (Review review : hotelReviews) {
-                    if (review.getUserId().equals(username)) {
-                        long reviewTime = review.getTime(); 
-                        long elapsedTime = currentTime - reviewTime;
-                        // Verifica se è passato meno tempo di quanto specificato (timeThreshold) dall'ultima recensione
-                        if (elapsedTime < timeThreshold) {
-                            return toJson(ServerResponse.REVIEW_INSERT_FAILED_WITHIN_TIME_THRESHOLD, null);// Utente non può inserire una nuova recensione entro l'intervallo di tempo specificato
-                        }
+                // Controlla se l'utente può inserire una nuova recensione e, in caso positivo, registra subito il nuovo istante:
+                // controllo e aggiornamento avvengono in modo atomico, così due inserimenti concorrenti non possono passare entrambi
+                boolean[] allowed = {false};
+                lastReviewTimes.compute(reviewTimeKey(username, nomeHotel), (key, lastTime) -> {
+                    // Verifica se è passato meno tempo di quanto specificato (timeThreshold) dall'ultima recensione
+                    if (lastTime != null && currentTime - lastTime < timeThreshold) {
+                        return lastTime;
                     }
+                    allowed[0] = true;
+                    return currentTime;
+                });
+                if (!allowed[0]) {
+                    return buildResponse(ServerResponse.REVIEW_INSERT_FAILED_WITHIN_TIME_THRESHOLD, null);// Utente non può inserire una nuova recensione entro l'intervallo di tempo specificato
                 }
 
                 // Crea un oggetto Review con i punteggi
                 Ratings singleScoresObject = new Ratings(singleScoresInts[0],singleScoresInts[1],singleScoresInts[2],singleScoresInts[3]);
                 Review review = new Review(username,currentTime,nomeHotel,citta,globalScoreInt,singleScoresObject);
                 
-                // Aggiungi la nuova recensione alla coda delle recensioni dell'hotel
-                hotelReviews.add(review);
+                // Aggiungi la nuova recensione all'archivio delle recensioni e a quelle da salvare
+                reviews.add(review);
+                pendingReviews.add(review);
 
                 // Aumenta il numero di recensioni scritte dall'utente per aggiornamento badge
                 user.increaseNumberOfReviewsWritten();
 
-                // Aggiorna i valori delle recensioni dell'hotel
-                updateHotelReviewScores(review);
+                // Aggiorna i valori delle recensioni dell'hotel e il suo ranking per quella città
+                updateHotelReviewScores(review, batch);
 
-                // Aggiorna il valore del ranking dell'hotel per quella città
-                updateHotelScoresAndRanking(foundHotel);
+                // Rende durevole la recensione prima di rispondere al client
+                logWrite(WriteAheadLog.REVIEW_INSERTED, review);
 
                 // Invia un messaggio di risposta al client
-                return toJson(ServerResponse.REVIEW_INSERT_SUCCESS, null);      
+                return buildResponse(ServerResponse.REVIEW_INSERT_SUCCESS, null);      
             }
             else {
                 // L'utente non è attualmente loggato, invia un messaggio di errore al client 
-                return toJson(ServerResponse.REVIEW_INSERT_FAILED_NOT_LOGGED_IN_SERVER_CHECK,null);
+                return buildResponse(ServerResponse.REVIEW_INSERT_FAILED_NOT_LOGGED_IN_SERVER_CHECK,null);
             }
 
         }
-            private static void updateHotelReviewScores(Review review) {
-                // Si assume che la citta e l'hotel esistano di già poichè ho fatto i controlli prima di chiamare il metodo
-
-                // Recupera gli hotel nella città della recensione
-                ConcurrentLinkedQueue<Hotel> hotelsInCity = hotelsByCity.get(review.getCity());
-                String nomeHotel = review.getHotelName();
-                Hotel foundHotel = null;
-
-                // Trova l'hotel corrispondente nella città
-                for (Hotel hotel : hotelsInCity) {
-                    if (hotel.getName().equals(nomeHotel)) {
-                        foundHotel = hotel;
-                        break;
+        /* Richieste multiple */
+        private static Reply searchAllHotelsBatch(List<String> cities) {
+            if (cities.size() > maxBatchItems) {
+                return buildResponse(ServerResponse.BATCH_FAILED_TOO_MANY_ITEMS, null);
+            }
+            // Ogni città viene servita come una searchAllHotels, ma la risposta multipla non passa dalla cache delle risposte:
+            // i frame in cache sono risposte complete già codificate, qui ogni elemento viene serializzato di nuovo nell'array
+            Reply[] items = new Reply[cities.size()];
+            for (int i = 0; i < items.length; i++) {
+                items[i] = searchAllHotels(cities.get(i));
+            }
+            return buildBatchResponse(items);
+        }
+        private static Reply searchHotels(List<String[]> hotels) {
+            if (hotels.size() > maxBatchItems) {
+                return buildResponse(ServerResponse.BATCH_FAILED_TOO_MANY_ITEMS, null);
+            }
+            // Ogni elemento è una coppia (nome, città)
+            Reply[] items = new Reply[hotels.size()];
+            for (int i = 0; i < items.length; i++) {
+                items[i] = searchHotel(hotels.get(i)[0], hotels.get(i)[1]);
+            }
+            return buildBatchResponse(items);
+        }
+        private static Reply insertReviews(List<ReviewRequest> requests) {
+            if (requests.size() > maxBatchItems) {
+                return buildResponse(ServerResponse.BATCH_FAILED_TOO_MANY_ITEMS, null);
+            }
+            return withSnapshotReadLock(() -> {
+                // Ogni recensione viene validata e inserita come con insertReview, con il proprio esito; i punteggi e il ranking
+                // di ogni hotel toccato vengono ricalcolati una sola volta e il log viene atteso con un unico fsync
+                ReviewBatch batch = new ReviewBatch();
+                Reply[] items = new Reply[requests.size()];
+                for (int i = 0; i < items.length; i++) {
+                    ReviewRequest request = requests.get(i);
+                    items[i] = insertReview(request.username, request.hotelName, request.city, request.globalScore, request.singleScores, batch);
+                }
+                batch.complete();
+                return buildBatchResponse(items);
+            });
+        }
+        // Risposta di una richiesta multipla: in Data l'array delle risposte complete dei singoli elementi, nello stesso ordine
+        private static Reply buildBatchResponse(Reply[] items) {
+            return buildStreamedResponse(ServerResponse.BATCH_SUCCESS, writer -> {
+                writer.beginArray();
+                for (Reply item : items) {
+                    item.writeTo(writer);
+                }
+                writer.endArray();
+            });
+        }
+        // Punteggio di attualità dell'hotel all'istante indicato: media dei pesi exp(-λ(t - tempoRecensione)) delle sue recensioni
+        private static double currentRelevanceScore(double anchor, long time) {
+            return anchor == Double.NEGATIVE_INFINITY ? 0.0 : Math.exp(anchor - relevanceDecayRate * time);
+        }
+        // Somma in scala logaritmica: ln(e^a + e^b) senza overflow
+        private static double logAddExp(double a, double b) {
+            double max = Math.max(a, b);
+            return max + Math.log1p(Math.exp(Math.min(a, b) - max));
+        }
+            // Ricostruisce i punteggi di attualità degli hotel a partire dalle recensioni caricate all'avvio
+            private static void rebuildRelevanceScores() {
+                // Le recensioni vengono lette per colonne senza creare oggetti Review, l'hotel viene cercato una sola volta
+                // per ogni coppia (hotel, città) internata nell'archivio
+                Map<Long, Hotel> hotelsByPlace = new HashMap<>();
+                for (int i = 0, size = reviews.size(); i < size; i++) {
+                    int index = i;
+                    Hotel hotel = hotelsByPlace.computeIfAbsent(reviews.getPlaceId(i), k -> hotelIndex.find(reviews.getCity(index), reviews.getHotelName(index)));
+                    if (hotel != null) {
+                        hotel.addRelevanceSample(relevanceDecayRate * reviews.getTime(i));
                     }
                 }
-
-                // Ottiene il numero di recensioni attuali dell'hotel
-                int numberOfReviews = foundHotel.getNumberOfReviews();
-
-                // Se ci sono recensioni precedenti per l'hotel
-                if (numberOfReviews > 0) {
-                    // Calcola la nuova valutazione globale dell'hotel
-                    float currentRate = foundHotel.getRate();
-                    float newGlobalScore = ((currentRate * numberOfReviews) + review.getGlobalScore()) / (numberOfReviews + 1);
-                    foundHotel.setRate(newGlobalScore);
-            
-                    // Aggiorna le valutazioni singole
-                    Ratings r = review.getSingleScores();
-                    Ratings x = foundHotel.getRatings();
-            
-                    double newCleaning = ((x.getCleaning() * numberOfReviews) + r.getCleaning()) / (numberOfReviews + 1);
-                    x.setCleaning(newCleaning);
-            
-                    double newPosition = ((x.getPosition() * numberOfReviews) + r.getPosition()) / (numberOfReviews + 1);
-                    x.setPosition(newPosition);
-            
-                    double newServices = ((x.getServices() * numberOfReviews) + r.getServices()) / (numberOfReviews + 1);
-                    x.setServices(newServices);
-            
-                    double newQuality = ((x.getQuality() * numberOfReviews) + r.getQuality()) / (numberOfReviews + 1);
-                    x.setQuality(newQuality);
-                }else {
-                    // Se è la prima recensione per l'hotel, imposta direttamente i valori
-                    foundHotel.setRate(review.getGlobalScore());
-                    foundHotel.setRatings(review.getSingleScores());
+                long currentTime = System.currentTimeMillis();
+                for (Map.Entry<String, CityRanking> entry : hotelsByCity.entrySet()) {
+                    for (Hotel hotel : entry.getValue()) {
+                        hotel.setOriginalRelevanceScore(currentRelevanceScore(hotel.getRelevanceAnchor(), currentTime));
+                    }
+                    cityStatsMap.get(entry.getKey()).rebuildRelevance(entry.getValue());
+                    // I punteggi di ranking sono cambiati, si ripubblica la classifica della città
+                    entry.getValue().rerank();
+                }
+            }
+            // Esegue una scrittura escludendo la cattura dello snapshot, più scritture possono procedere in parallelo.
+            // La risposta viene restituita solo quando i record scritti nel log sono durevoli, ma l'fsync si attende dopo
+            // aver rilasciato il lock: uno snapshot non resta bloccato dietro alle scritture in attesa. Un record già nel
+            // log che finisce nello snapshot resta comunque durevole, la rotazione del log esegue il proprio fsync
+            private static Reply withSnapshotReadLock(Supplier<Reply> write) {
+                long[] pending = pendingLogPosition.get();
+                pending[0] = -1;
+                Reply reply;
+                snapshotLock.readLock().lock();
+                try {
+                    reply = write.get();
+                } finally {
+                    snapshotLock.readLock().unlock();
+                }
+                if (pending[0] >= 0) {
+                    // Una sola attesa anche per più record, come nelle richieste multiple
+                    long position = pending[0];
+                    pending[0] = -1;
+                    writeAheadLog.awaitDurable(position);
+                }
+                return reply;
+            }
+            // Aggiunge la scrittura al log, va chiamato all'interno di withSnapshotReadLock che attende il prossimo fsync:
+            // il record diventa durevole insieme a quelli arrivati nel frattempo
+            private static void logWrite(byte type, Object record) {
+                if (writeAheadLog != null) {
+                    long[] pending = pendingLogPosition.get();
+                    pending[0] = Math.max(pending[0], writeAheadLog.append(type, logGson.toJson(record)));
                 }
+            }
+            // Chiave della mappa lastReviewTimes per la coppia (utente, hotel)
+            private static String reviewTimeKey(String username, String hotelName) {
+                return username + '\0' + hotelName;
+            }
+            private static void updateHotelReviewScores(Review review, ReviewBatch batch) {
+                // Si assume che la citta e l'hotel esistano di già poichè ho fatto i controlli prima di chiamare il metodo
+
+                // Trova l'hotel corrispondente nella città della recensione
+                Hotel foundHotel = hotelIndex.find(review.getCity(), review.getHotelName());
 
-                // Incrementa il numero di recensioni dell'hotel
-                foundHotel.setNumberOfReviews(numberOfReviews + 1);
+                // Aggiunge la recensione ai totali dell'hotel (valutazioni, numero di recensioni e attualità) con un
+                // unico aggiornamento atomico: inserimenti concorrenti sullo stesso hotel non perdono aggiornamenti
+                foundHotel.addReview(review, relevanceDecayRate * review.getTime());
 
-                updateHotelScoresAndRanking(foundHotel);
+                if (batch != null) {
+                    // Punteggi e ranking verranno aggiornati alla fine della richiesta multipla
+                    batch.hotels.add(foundHotel);
+                } else {
+                    updateHotelScoresAndRanking(foundHotel);
+                }
             }
             private static void updateHotelScoresAndRanking(Hotel hotel) {
+                // Legge un'unica istantanea coerente dei totali dell'hotel
+                HotelScores scores = hotel.getScores();
+
                 // Calcola il punteggio di qualità delle recensioni
-                Ratings ratingHotel = hotel.getRatings();
-                double qualityScore = ratingHotel.calculateAverage();
+                double qualityScore = scores.getRatings().calculateAverage();
 
                 // Calcola il punteggio di quantità delle recensioni
-                double quantityScore = hotel.getNumberOfReviews();
+                double quantityScore = scores.getCount();
 
-                // Calcola il punteggio di attualità delle recensioni, questo però viene ricalcolato per ogni hotel in modo che siano coerenti i valori degli altri hotel per il ranking finale.
+                // Il punteggio di attualità decade esponenzialmente nel tempo con la stessa costante per tutti gli hotel,
+                // quindi i rapporti tra gli hotel della città non cambiano col passare del tempo: basta aggiornare l'hotel
+                // della recensione, senza ripercorrere le recensioni di tutti gli hotel. Il valore corrente è solo informativo.
                 String city = hotel.getCity();
-                ConcurrentLinkedQueue<Hotel> hotelsInCity = hotelsByCity.get(city);
-                long currentTime = System.currentTimeMillis();
-                double maxRelevanceScore = Double.MIN_VALUE;
-                for(Hotel h : hotelsInCity){
-                    double relevanceScore = 0;
-                    if (quantityScore > 0) {
-                        ConcurrentLinkedQueue<Review> hotelReviews = reviews.get(h.getName());
-                        if (hotelReviews != null) {
-                            for (Review review : hotelReviews) {
-                                //long daysDifference = (currentTime - review.getTime()) / (1000 * 60 * 60 * 24); // Calcolo dei giorni trascorsi
-                                long daysDifference = (currentTime - review.getTime()) / (1000*60); // Calcolo dei minuti trascorsi
-
-                                // Scala inversa: quanto più recente è la recensione, tanto maggiore è il punteggio
-                                double scaledDaysDifference = 1.0 / (daysDifference + 1); // Assicura che il punteggio aumenti man mano che i giorni diminuiscono(con +1 evito divisioni per zero)
-
-                                // Aggiungi il contributo al punteggio di attualità
-                                relevanceScore += scaledDaysDifference;
-                            }
-                            relevanceScore /= h.getNumberOfReviews(); // Calcolo la media del punteggio di attualità
-                            // Setta i punteggi di attualità per ogni hotel
-                            h.setOriginalRelevanceScore(relevanceScore);
-                            // Aggiorno il maxRelevanceScore per normalizzare grazie a questo massimo, che viene chiaramente ogni volta aggiornato in quanto questi punteggio varia per tutti gli hotel al passare del tempo.
-                            if(maxRelevanceScore < relevanceScore){
-                                maxRelevanceScore = relevanceScore;
-                            }
-                        }
-                    }
-                }
+                CityRanking hotelsInCity = hotelsByCity.get(city);
+                hotel.setOriginalRelevanceScore(currentRelevanceScore(scores.getRelevanceAnchor(), System.currentTimeMillis()));
 
                 // Imposta i punteggi originali per la normalizzazione min/max in caso di nuovi min/max
                 hotel.setOriginalQualityScore(qualityScore);
@@ -802,14 +1367,21 @@ public class ServerHotelierMain {
                 
                 // Normalizza e aggiorna i punteggi massimi per la città
                 CityStats cityStats = cityStatsMap.get(city);
-                cityStats.setMaxRelevanceScore(maxRelevanceScore);
-                cityStats.normalizeAndUpdateMaxScores(hotelsInCity, hotel);
+                boolean cityRenormalized = cityStats.normalizeAndUpdateMaxScores(hotelsInCity, hotel);
+
+                // I punteggi di ranking della città sono cambiati, le risposte in cache non sono più valide
+                // e l'hotel va salvato al prossimo snapshot
+                responseCache.invalidateCity(city);
+                hotelsDirty.set(true);
+
+                // Segnala la città per il ricalcolo della classifica: se è cambiato solo l'hotel della recensione basta riposizionarlo
+                rankingUpdater.markDirty(city, hotel, cityRenormalized);
             }
         /* Visualizzazione Badge */
-        private static String showMyBadge(String username) {
+        private static Reply showMyBadge(String username) {
             // Controlla se l'utente è loggato, client check
             if(username.equals("null")){
-                return toJson(ServerResponse.BADGES_FAILED_NOT_LOGGED_IN_CLIENT_CHECK,null);
+                return buildResponse(ServerResponse.BADGES_FAILED_NOT_LOGGED_IN_CLIENT_CHECK,null);
             }
             
             // Se l'utente non è loggato username sarà pari a null per come è implementato il client, si tiene comunque questo controllo per rimanere robusti contro possibili modifiche future lato client
@@ -817,7 +1389,7 @@ public class ServerHotelierMain {
             User user = registeredUsers.get(username);
             if(user == null){
                 // L'utente non è registrato, invia un messaggio di errore al client(quesio perche se si ha l'associazione in qesta hashmap significa che ti sei loggato, dunque se non trova nulla allora non sei loggato)
-                return toJson(ServerResponse.BADGES_FAILED_USER_NOT_REGISTERED_SERVER_CHECK,null);
+                return buildResponse(ServerResponse.BADGES_FAILED_USER_NOT_REGISTERED_SERVER_CHECK,null);
             }
 
             // Verifica se l'utente è attualmente loggato
@@ -826,35 +1398,50 @@ public class ServerHotelierMain {
                 String userLevel = user.getLevel();
                 JsonObject nestedData = new JsonObject();
                 nestedData.addProperty("level", userLevel);
-                return toJson(ServerResponse.BADGES_SUCCESS, nestedData);
+                return buildResponse(ServerResponse.BADGES_SUCCESS, nestedData);
             }
             else {
                 // Se l'utente non è attualmente loggato, restituisce un messaggio di errore al client
                 // (Se c'è una voce nell'HashMap ma l'utente non è segnato come loggato)
-                return toJson(ServerResponse.BADGES_FAILED_NOT_LOGGED_IN_SERVER_CHECK,null);
+                return buildResponse(ServerResponse.BADGES_FAILED_NOT_LOGGED_IN_SERVER_CHECK,null);
             }
 
         }
     
-        /* Utility per gestione richieste */
-        private static String toJson(ServerResponse serverResponse, JsonObject data) {
-            // Creazione di un'istanza di Gson per la conversione dell'oggetto JSON in una stringa JSON formattata
-            Gson gson = new GsonBuilder().setPrettyPrinting().create();
-
-            // Creazione di un nuovo oggetto JSON per rappresentare la risposta
-            JsonObject jsonResponse = new JsonObject();
-
-            // Aggiunta del codice di stato e della frase di stato alla risposta JSON
-            jsonResponse.addProperty("Status-code", serverResponse.getCode());
-            jsonResponse.addProperty("ReasonPhrase", serverResponse.getReasonPhrase());
-
-            // Aggiunta dei dati alla risposta JSON se sono presenti
-            if (data != null) {
-                jsonResponse.add("Data", data);
+        /* Formato delle risposte */
+        private static Reply setWireFormat(String format, State state) {
+            // Il client sceglie se ricevere le risposte in formato compatto (senza spazi) o formattato
+            if (format.equalsIgnoreCase("compact")) {
+                state.compactReplies = true;
+            } else if (format.equalsIgnoreCase("pretty")) {
+                state.compactReplies = false;
+            } else {
+                return buildResponse(ServerResponse.WIRE_FORMAT_FAILED_UNKNOWN_FORMAT, null);
             }
+            return buildResponse(ServerResponse.WIRE_FORMAT_SUCCESS, null);
+        }
+    
+        /* Utility per gestione richieste */
+        private static Reply buildResponse(ServerResponse serverResponse, JsonObject data) {
+            // I dati già costruiti come albero JSON vengono copiati nel writer, che mantiene il formato della connessione
+            return buildStreamedResponse(serverResponse, data == null ? null : writer -> wireGson.toJson(data, writer));
+        }
+        private static Reply buildStreamedResponse(ServerResponse serverResponse, Reply data) {
+            return writer -> {
+                writer.beginObject();
+
+                // Aggiunta del codice di stato e della frase di stato alla risposta JSON
+                writer.name("Status-code").value(serverResponse.getCode());
+                writer.name("ReasonPhrase").value(serverResponse.getReasonPhrase());
+
+                // Aggiunta dei dati alla risposta JSON se sono presenti
+                if (data != null) {
+                    writer.name("Data");
+                    data.writeTo(writer);
+                }
 
-            // Conversione dell'oggetto JSON in una stringa JSON formattata e restituzione
-            return gson.toJson(jsonResponse);
+                writer.endObject();
+            };
         }        
         private enum ServerResponse {
             // Risposte per il processo di registrazione
@@ -901,8 +1488,37 @@ public class ServerHotelierMain {
             BADGES_FAILED_NOT_LOGGED_IN_CLIENT_CHECK(421,"Visualizzazione badge fallita: utente non loggato (check client-side)"),
             BADGES_FAILED_USER_NOT_REGISTERED_SERVER_CHECK(422,"Visualizzazione badge fallita: utente non registrato (check server-side)"),
 
+            // Risposte per la negoziazione del formato delle risposte
+            WIRE_FORMAT_SUCCESS(207, "Formato delle risposte impostato con successo"),
+            WIRE_FORMAT_FAILED_UNKNOWN_FORMAT(423, "Impostazione formato fallita: il formato deve essere compact o pretty"),
+
+            // Risposte per la negoziazione del protocollo binario
+            BINARY_PROTOCOL_SUCCESS(208, "Protocollo binario attivato"),
+            BINARY_PROTOCOL_FAILED_UNSUPPORTED_VERSION(424, "Attivazione protocollo binario fallita: versione non supportata"),
+
             // Risposta per richieste non valide
-            INVALID_REQUEST(500, "Richiesta non valida: codice di richiesta sconosciuto");
+            INVALID_REQUEST(500, "Richiesta non valida: codice di richiesta sconosciuto"),
+            INVALID_BINARY_REQUEST(501, "Richiesta non valida: richiesta binaria malformata"),
+
+            // Risposte per le query di classifica
+            RANKING_SUCCESS(210, "Classifica della citta restituita con successo"),
+            RANKING_FAILED_CITY_NOT_FOUND(426, "Classifica fallita: non esistono hotel per questa città"),
+            RANKING_FAILED_INVALID_RANGE(427, "Classifica fallita: offset e limit devono essere interi non negativi"),
+            RANKING_FAILED_UNKNOWN_FIELD(428, "Classifica fallita: i campi selezionabili sono id, name, city, rate e rankingScore"),
+
+            // Risposte per la ricerca filtrata
+            FILTER_SUCCESS(211, "Ricerca filtrata avvenuta con successo"),
+            FILTER_FAILED_CITY_NOT_FOUND(429, "Ricerca filtrata fallita: non esistono hotel per questa città"),
+            FILTER_FAILED_INVALID_SCORE(430, "Ricerca filtrata fallita: i punteggi minimi devono essere numeri tra 0 e 5"),
+
+            // Risposte per l'autocompletamento dei nomi
+            AUTOCOMPLETE_SUCCESS(212, "Autocompletamento avvenuto con successo"),
+            AUTOCOMPLETE_FAILED_CITY_NOT_FOUND(431, "Autocompletamento fallito: non esistono hotel per questa città"),
+            AUTOCOMPLETE_FAILED_INVALID_LIMIT(432, "Autocompletamento fallito: il numero di risultati deve essere un intero positivo"),
+
+            // Risposte per le richieste multiple
+            BATCH_SUCCESS(209, "Richiesta multipla eseguita, esito di ogni elemento in Data"),
+            BATCH_FAILED_TOO_MANY_ITEMS(425, "Richiesta multipla fallita: troppi elementi");
 
             private final int code;
             private final String reasonPhrase;
@@ -923,779 +1539,3218 @@ public class ServerHotelierMain {
 /* FINE GESTIONE RICHIESTE */
 
     /* CLASSI */
-    private static class CityStats {
+    private interface Request {
+        // Esegue la richiesta già decodificata (testuale o binaria) e ne restituisce la risposta
+        Reply handle(State state);
+    }
+    private static class ReviewRequest {
+        // Recensione di una richiesta multipla, con i punteggi già convertiti (SCORE_NOT_AN_INTEGER se non interi)
+        final String username;
+        final String hotelName;
+        final String city;
+        final int globalScore;
+        final int[] singleScores;
+
+        ReviewRequest(String username, String hotelName, String city, int globalScore, int[] singleScores) {
+            this.username = username;
+            this.hotelName = hotelName;
+            this.city = city;
+            this.globalScore = globalScore;
+            this.singleScores = singleScores;
+        }
 
-        private double maxQualityScore; // Il massimo punteggio di qualità per gli hotel in questa città
-        private double maxQuantityScore; // Il massimo punteggio di quantità per gli hotel in questa città
-        private double maxRelevanceScore; // Il massimo punteggio di pertinenza per gli hotel in questa città
-    
-        public CityStats() {
-            this.maxQualityScore = Double.MIN_VALUE; // Inizializza i massimi a valori molto bassi
-            this.maxQuantityScore = Double.MIN_VALUE;
-            this.maxRelevanceScore = Double.MIN_VALUE; 
+        // Elemento testuale: i punteggi singoli sono separati da punti come in insertReview
+        static ReviewRequest fromText(String username, String hotelName, String city, String globalScore, String singleScores) {
+            String[] scores = singleScores.split("\\.", -1);
+            int[] values = new int[scores.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = parseScore(scores[i]);
+            }
+            return new ReviewRequest(username, hotelName, city, parseScore(globalScore), values);
         }
+    }
+    private static class ReviewBatch {
+        // Stato condiviso dagli inserimenti di una stessa richiesta insertReviews
+        // Hotel che hanno ricevuto recensioni, da rinormalizzare una sola volta
+        final Set<Hotel> hotels = new HashSet<>();
 
-        public void normalizeAndUpdateMaxScores(ConcurrentLinkedQueue<Hotel> hotels, Hotel h) {
-            boolean updatedQuality = false;
-            boolean updatedQuantity = false;
-            double newQualityScore = h.getOriginalQualityScore();
-            double newQuantityScore = h.getOriginalQuantityScore();
+        // Aggiorna punteggi e ranking degli hotel toccati, l'fsync dell'intera richiesta viene atteso da withSnapshotReadLock
+        void complete() {
+            for (Hotel hotel : hotels) {
+                updateHotelScoresAndRanking(hotel);
+            }
+        }
+    }
+    private static class BinaryProtocol {
+        // Il client attiva il protocollo binario inviando come primo frame [0]['H']['B'][versione]: un comando testuale
+        // non inizia mai con il byte 0. Dopo l'attivazione ogni frame è [codice (byte)][campi], le stringhe sono
+        // [lunghezza (unsigned short)][UTF-8] e i punteggi sono byte (0xFF se il valore inserito non era intero).
+        // Le richieste multiple iniziano con il numero di elementi (unsigned short) seguito dai campi di ogni elemento.
+        public static final int VERSION = 1;
+        private static final byte HELLO_MARKER = 0;
+
+        public static final byte REGISTER = 1;
+        public static final byte LOGIN = 2;
+        public static final byte LOGOUT = 3;
+        public static final byte SEARCH_HOTEL = 4;
+        public static final byte SEARCH_ALL_HOTELS = 5;
+        public static final byte INSERT_REVIEW = 6;
+        public static final byte SHOW_MY_BADGE = 7;
+        public static final byte WIRE_FORMAT = 8;
+        public static final byte SEARCH_ALL_HOTELS_BATCH = 9;
+        public static final byte SEARCH_HOTELS = 10;
+        public static final byte INSERT_REVIEWS = 11;
+        public static final byte RANK_HOTELS = 12;
+        public static final byte FILTER_HOTELS = 13;
+        public static final byte AUTOCOMPLETE_HOTELS = 14;
+        public static final byte CLOSE = 127;
+
+        // Valore del byte di un punteggio che il client non ha potuto convertire in intero
+        private static final int NOT_AN_INTEGER_BYTE = 0xFF;
+
+        public static boolean isHello(ByteBuffer frame) {
+            return frame.remaining() == 4 && frame.get(frame.position()) == HELLO_MARKER
+                    && frame.get(frame.position() + 1) == 'H' && frame.get(frame.position() + 2) == 'B';
+        }
 
-            // Aggiorna i massimi se i punteggi correnti sono più alti
-            if (newQualityScore > maxQualityScore) {
-                maxQualityScore = newQualityScore;
-                updatedQuality = true;
+        public static boolean isClose(ByteBuffer frame) {
+            return frame.remaining() == 1 && frame.get(frame.position()) == CLOSE;
+        }
+
+        // Attiva il protocollo binario se il client ne supporta la versione, le risposte diventano JSON compatto
+        public static Request negotiate(ByteBuffer frame, State state) {
+            int clientVersion = frame.get(frame.position() + 3) & 0xFF;
+            if (clientVersion < VERSION) {
+                return requestState -> buildResponse(ServerResponse.BINARY_PROTOCOL_FAILED_UNSUPPORTED_VERSION, null);
             }
-            if (newQuantityScore > maxQuantityScore) {
-                maxQuantityScore = newQuantityScore;
-                updatedQuantity = true;
+            state.binaryProtocol = true;
+            return requestState -> {
+                requestState.compactReplies = true;
+                JsonObject data = new JsonObject();
+                data.addProperty("version", VERSION);
+                return buildResponse(ServerResponse.BINARY_PROTOCOL_SUCCESS, data);
+            };
+        }
+
+        // Decodifica il frame sul thread del selettore: la richiesta restituita non fa più riferimento al buffer
+        public static Request decode(ByteBuffer frame) {
+            try {
+                Request request = decodeFields(frame);
+                if (frame.hasRemaining()) {
+                    throw new IllegalArgumentException("byte in eccesso nel frame");
+                }
+                return request;
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                return requestState -> buildResponse(ServerResponse.INVALID_BINARY_REQUEST, null);
             }
+        }
 
-            // Se almeno uno dei massimi è stato aggiornato, normalizza gli hotel tranne quello in particolare del quale si deve normalizzare tutti i valori non solo quelli che hanno riscontrato un nuovo massimo
-            for (Hotel hotel : hotels) {
-                if(!hotel.equals(h)){
-                    double originalQualityScore = hotel.getOriginalQualityScore();
-                    double originalQuantityScore = hotel.getOriginalQuantityScore();
-                    double originalRelevanceScore = hotel.getOriginalRelevanceScore();
-                    // questo peche nel caso in cui non si ha un aggiornamento dei valori di utilizzano i valori di default
-                    double normalizedQuality = hotel.getNormalizedQualityScore();
-                    double normalizedQuantity = hotel.getNormalizedQuantityScore();
-                    
-                    // Normalizza i punteggi degli hotel se sono stati aggiornati i massimi
-                    if (updatedQuality) {
-                        normalizedQuality = normalizeValue(originalQualityScore, maxQualityScore);
-                        hotel.setNormalizedQualityScore(normalizedQuality);
+        private static Request decodeFields(ByteBuffer frame) {
+            byte opcode = frame.get();
+            switch (opcode) {
+                case REGISTER: {
+                    String username = readString(frame);
+                    String password = readString(frame);
+                    return requestState -> withSnapshotReadLock(() -> register(username, password));
+                }
+                case LOGIN: {
+                    String username = readString(frame);
+                    String password = readString(frame);
+                    return requestState -> login(username, password, requestState.id);
+                }
+                case LOGOUT: {
+                    String username = readString(frame);
+                    return requestState -> logout(username);
+                }
+                case SEARCH_HOTEL: {
+                    String hotelName = readString(frame);
+                    String city = readString(frame);
+                    return requestState -> searchHotel(hotelName, city);
+                }
+                case SEARCH_ALL_HOTELS: {
+                    String city = readString(frame);
+                    return requestState -> searchAllHotels(city);
+                }
+                case INSERT_REVIEW: {
+                    ReviewRequest review = readReview(frame);
+                    return requestState -> withSnapshotReadLock(() -> insertReview(review.username, review.hotelName, review.city, review.globalScore, review.singleScores));
+                }
+                case SHOW_MY_BADGE: {
+                    String username = readString(frame);
+                    return requestState -> showMyBadge(username);
+                }
+                case WIRE_FORMAT: {
+                    String format = frame.get() != 0 ? "compact" : "pretty";
+                    return requestState -> setWireFormat(format, requestState);
+                }
+                case AUTOCOMPLETE_HOTELS: {
+                    // [prefisso][città, vuota per tutte le città][numero massimo di risultati (unsigned short)]
+                    String prefix = readString(frame);
+                    String city = readString(frame);
+                    int limit = frame.getShort() & 0xFFFF;
+                    return requestState -> autocompleteHotels(prefix, city, limit);
+                }
+                case FILTER_HOTELS: {
+                    // [città][numero di servizi (unsigned short)][servizio]*[5 minimi (float)]
+                    String city = readString(frame);
+                    int count = frame.getShort() & 0xFFFF;
+                    List<String> services = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        services.add(readString(frame));
                     }
-                    if (updatedQuantity) {
-                        normalizedQuantity = normalizeValue(originalQuantityScore, maxQuantityScore);
-                        hotel.setNormalizedQuantityScore(normalizedQuantity);
+                    float[] minimums = new float[HotelFilter.SCORES];
+                    for (int i = 0; i < minimums.length; i++) {
+                        minimums[i] = frame.getFloat();
                     }
-                    
-                    // Questi li Normalizzo a prescindere in quanto i valori di attualità saranno sicuramente cambiati
-                    double normalizedRelevance = normalizeValue(originalRelevanceScore, maxRelevanceScore);
-                    hotel.setNormalizedRelevanceScore(normalizedRelevance);
-                    
-                    // Calcola e imposta il punteggio complessivo di ranking per l'hotel
-                    double rankingScore = normalizedQuality + normalizedQuantity + normalizedRelevance;
-                    hotel.setRankingScore(rankingScore);
+                    HotelFilter filter = new HotelFilter(services, minimums);
+                    return requestState -> filterHotels(city, filter);
+                }
+                case RANK_HOTELS: {
+                    // [città][offset (unsigned short)][limit (unsigned short)][maschera dei campi (byte)]
+                    String city = readString(frame);
+                    int offset = frame.getShort() & 0xFFFF;
+                    int limit = frame.getShort() & 0xFFFF;
+                    int fields = frame.get() & 0xFF;
+                    int projection = (fields & ~HotelWireAdapter.ALL_FIELDS) != 0 ? -1 : fields;
+                    return requestState -> rankHotels(city, offset, limit, projection);
+                }
+                case SEARCH_ALL_HOTELS_BATCH: {
+                    int count = frame.getShort() & 0xFFFF;
+                    List<String> cities = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        cities.add(readString(frame));
+                    }
+                    return requestState -> searchAllHotelsBatch(cities);
                 }
+                case SEARCH_HOTELS: {
+                    int count = frame.getShort() & 0xFFFF;
+                    List<String[]> hotels = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        hotels.add(new String[] {readString(frame), readString(frame)});
+                    }
+                    return requestState -> searchHotels(hotels);
+                }
+                case INSERT_REVIEWS: {
+                    int count = frame.getShort() & 0xFFFF;
+                    List<ReviewRequest> reviews = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        reviews.add(readReview(frame));
+                    }
+                    return requestState -> insertReviews(reviews);
+                }
+                default:
+                    return requestState -> buildResponse(ServerResponse.INVALID_REQUEST, null);
             }
-                       // Sia nel caso di nessun massimo aggiornato che nella'altro, normalizza e imposta i punteggi dell'hotel specificato
-            double normalizedQuality = normalizeValue(h.getOriginalQualityScore(),maxQualityScore);
-            double normalizedQuantity = normalizeValue(h.getOriginalQuantityScore(),maxQuantityScore);
-            double normalizedRelevance = normalizeValue(h.getOriginalRelevanceScore(),maxRelevanceScore);
-            h.setNormalizedQualityScore(normalizedQuality);
-            h.setNormalizedQuantityScore(normalizedQuantity);
-            h.setNormalizedRelevanceScore(normalizedRelevance);
-            h.setRankingScore(normalizedQuality + normalizedQuantity + normalizedRelevance);
         }
 
-        // Metodo privato per la normalizzazione dei punteggi
-        private double normalizeValue(double value, double maxValue) {
-            if (maxValue == 0) {
-                // Gestione del caso in cui il valore massimo è zero per evitare divisioni per zero
-                return 0.0; 
-            } else {
-                // Normalizza il valore rispetto al massimo e scala il risultato tra 0 e 10
-                return 10.0 * (value / maxValue);
+        private static String readString(ByteBuffer frame) {
+            int length = frame.getShort() & 0xFFFF;
+            if (length > frame.remaining()) {
+                throw new BufferUnderflowException();
             }
+            ByteBuffer bytes = frame.slice();
+            bytes.limit(length);
+            frame.position(frame.position() + length);
+            return StandardCharsets.UTF_8.decode(bytes).toString();
         }
 
-        private void setMaxRelevanceScore(double maxRelevanceScore){
-            this.maxRelevanceScore = maxRelevanceScore;
+        // [username][nomeHotel][città][punteggio globale][4 punteggi singoli]
+        private static ReviewRequest readReview(ByteBuffer frame) {
+            String username = readString(frame);
+            String hotelName = readString(frame);
+            String city = readString(frame);
+            int globalScore = readScore(frame);
+            int[] singleScores = new int[4];
+            for (int i = 0; i < singleScores.length; i++) {
+                singleScores[i] = readScore(frame);
+            }
+            return new ReviewRequest(username, hotelName, city, globalScore, singleScores);
         }
-    }
-    private static class User {
-        private String username;
-        private String password;
-        private boolean isLoggedIn;
-        private int numberOfReviewsWritten = 0;
-        private Level level;
-        private int idClient; 
 
-        // Costruttore della classe User
-        public User(String username, String password) {
-            this.username = username;
-            this.password = password;
-            this.isLoggedIn = false; // L'utente è inizialmente disconnesso
-            this.level = Level.RECENSORE; // Livello iniziale
-            this.idClient = -1; // Valore nullo per l'ID del client
+        private static int readScore(ByteBuffer frame) {
+            int score = frame.get() & 0xFF;
+            return score == NOT_AN_INTEGER_BYTE ? SCORE_NOT_AN_INTEGER : score;
+        }
+    }
+    private interface Reply {
+        // Scrive la risposta (oggetto JSON completo o dati annidati) nel writer della connessione
+        void writeTo(JsonWriter writer) throws IOException;
 
+        // Restituisce il frame (lunghezza + risposta) pronto per la scrittura sul canale
+        default ByteBuffer toFrame(boolean compact) {
+            return encodeReply(this, compact);
         }
-    
-        public int getIdClient() {
-            return idClient;
+    }
+    private static class ResponseCache {
+        // Versione dei dati di ogni città, incrementata ad ogni modifica degli hotel o del ranking
+        private final ConcurrentHashMap<String, Long> cityVersions = new ConcurrentHashMap<>();
+        // Frame già codificati, per formato e chiave di ricerca
+        private final ConcurrentHashMap<String, CachedFrame> frames = new ConcurrentHashMap<>();
+        // Chiavi in ordine di inserimento, una per voce: oltre responseCacheMaxBytes si eliminano le più vecchie
+        private final ConcurrentLinkedQueue<String> insertionOrder = new ConcurrentLinkedQueue<>();
+        private final AtomicLong cachedBytes = new AtomicLong();
+
+        // Metriche della cache
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+
+        // Avvolge una risposta di ricerca in modo che venga servita dalla cache quando possibile
+        public Reply cacheable(String key, String city, Reply reply) {
+            // La versione va letta prima di serializzare: se i dati cambiano nel frattempo la voce risulterà già scaduta
+            return cacheable(key, city, versionOf(city), reply);
         }
 
-        public void setIdClient(int newIdClient) {
-            this.idClient = newIdClient;
-        } 
+        // Come sopra, per le risposte costruite da una classifica già letta: la versione va letta prima della classifica,
+        // altrimenti una classifica vecchia letta prima di una pubblicazione finirebbe in cache con la versione nuova
+        public Reply cacheable(String key, String city, long version, Reply reply) {
+            if (!responseCacheEnabled) {
+                return reply;
+            }
+            return new Reply() {
+                @Override
+                public void writeTo(JsonWriter writer) throws IOException {
+                    reply.writeTo(writer);
+                }
 
-        public String getUsername(){
-            return this.username;
+                @Override
+                public ByteBuffer toFrame(boolean compact) {
+                    String frameKey = (compact ? "c\0" : "p\0") + key;
+                    ByteBuffer cached = lookup(frameKey, city);
+                    if (cached != null) {
+                        return cached;
+                    }
+                    ByteBuffer frame = encodeReply(reply, compact);
+                    store(frameKey, city, version, frame);
+                    return frame;
+                }
+            };
         }
 
-        public String getPassword(){
-            return this.password;
+        public void invalidateCity(String city) {
+            cityVersions.merge(city, 1L, Long::sum);
         }
 
-        public boolean isLoggedIn() {
-            return this.isLoggedIn;
+        public long versionOf(String city) {
+            return cityVersions.getOrDefault(city, 0L);
         }
 
-        public void setLoggedIn(boolean loggedIn) {
-            this.isLoggedIn = loggedIn;
+        private ByteBuffer lookup(String frameKey, String city) {
+            CachedFrame cached = frames.get(frameKey);
+            if (cached != null) {
+                if (cached.version == versionOf(city)) {
+                    hits.increment();
+                    // Ogni connessione riceve una propria vista (sola lettura) dello stesso frame, senza copie
+                    return cached.frame.duplicate();
+                }
+                // Voce scaduta, verrà sostituita da store() mantenendo la sua posizione nell'ordine di inserimento
+                evictions.increment();
+            }
+            misses.increment();
+            return null;
         }
 
-        public void increaseNumberOfReviewsWritten(){
-            this.numberOfReviewsWritten++;
-            updateLevel(); // Aggiorna il livello ogni volta che viene aggiunta una recensione
-
-        }
+        private void store(String frameKey, String city, long version, ByteBuffer frame) {
+            // Il frame del pool verrà rilasciato dopo la scrittura, in cache se ne conserva una copia di sola lettura
+            if (frame.remaining() > responseCacheMaxBytes) {
+                return;
+            }
+            ByteBuffer copy = ByteBuffer.allocateDirect(frame.remaining());
+            copy.put(frame.duplicate()).flip();
+            CachedFrame previous = frames.put(frameKey, new CachedFrame(version, copy.asReadOnlyBuffer()));
+            cachedBytes.addAndGet(copy.capacity() - (previous == null ? 0 : previous.frame.capacity()));
+            if (previous == null) {
+                insertionOrder.add(frameKey);
+            }
 
-        // Metodo per aggiornare il livello dell'utente in base al numero di recensioni
-        private void updateLevel() {
-            if (numberOfReviewsWritten >= Level.RECENSORE_ESPERTO.getRequiredReviews() && numberOfReviewsWritten < Level.CONTRIBUTORE.getRequiredReviews()) {
-                level = Level.RECENSORE_ESPERTO;
-            } else if (numberOfReviewsWritten >= Level.CONTRIBUTORE.getRequiredReviews() && numberOfReviewsWritten < Level.CONTRIBUTORE_ESPERTO.getRequiredReviews()) {
-                level = Level.CONTRIBUTORE;
-            } else if (numberOfReviewsWritten >= Level.CONTRIBUTORE_ESPERTO.getRequiredReviews() && numberOfReviewsWritten < Level.CONTRIBUTORE_SUPER.getRequiredReviews()) {
-                level = Level.CONTRIBUTORE_ESPERTO;
-            } else if (numberOfReviewsWritten >= Level.CONTRIBUTORE_SUPER.getRequiredReviews()) {
-                level = Level.CONTRIBUTORE_SUPER;
+            // Le chiavi dipendono dalle richieste dei client: la memoria diretta occupata dalla cache resta limitata
+            // eliminando le voci più vecchie
+            while (cachedBytes.get() > responseCacheMaxBytes) {
+                String oldest = insertionOrder.poll();
+                if (oldest == null) {
+                    break;
+                }
+                CachedFrame removed = frames.remove(oldest);
+                if (removed != null) {
+                    cachedBytes.addAndGet(-removed.frame.capacity());
+                    evictions.increment();
+                }
             }
         }
 
-        public String getLevel(){
-            return this.level.getBadge();
+        @Override
+        public String toString() {
+            return "ResponseCache{" +
+                    "entries=" + frames.size() +
+                    ", bytes=" + cachedBytes.get() +
+                    ", hits=" + hits.sum() +
+                    ", misses=" + misses.sum() +
+                    ", evictions=" + evictions.sum() +
+                    '}';
         }
-        // Enum per i livelli di esperienza e i relativi distintivi
-        public enum Level {
-            RECENSORE(0, "Recensore"),
-            RECENSORE_ESPERTO(10, "Recensore esperto"),
-            CONTRIBUTORE(20, "Contributore"),
-            CONTRIBUTORE_ESPERTO(30, "Contributore esperto"),
-            CONTRIBUTORE_SUPER(40, "Contributore Super");
 
-            private final int requiredReviews;
-            private final String badge;
+        private static class CachedFrame {
+            private final long version;
+            private final ByteBuffer frame;
 
-            Level(int requiredReviews, String badge) {
-                this.requiredReviews = requiredReviews;
-                this.badge = badge;
+            public CachedFrame(long version, ByteBuffer frame) {
+                this.version = version;
+                this.frame = frame;
             }
+        }
+    }
+    private static class ReplySink extends OutputStream {
+        // Dimensione iniziale del buffer e dimensione oltre la quale non viene conservato tra una richiesta e l'altra
+        private static final int INITIAL_CAPACITY = 4096;
+        private static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+
+        private byte[] bytes = new byte[INITIAL_CAPACITY];
+        private int size;
+        // Writer UTF-8 riutilizzato, i suoi buffer interni vengono allocati una sola volta per thread
+        private final OutputStreamWriter writer = new OutputStreamWriter(this, StandardCharsets.UTF_8);
+
+        public OutputStreamWriter getWriter() {
+            return writer;
+        }
 
-            public int getRequiredReviews() {
-                return requiredReviews;
+        // Prepara il sink per una nuova risposta riservando i primi 4 byte per la lunghezza
+        public void reset() {
+            if (bytes.length > MAX_RETAINED_CAPACITY) {
+                bytes = new byte[INITIAL_CAPACITY];
             }
+            size = Integer.BYTES;
+        }
 
-            public String getBadge() {
-                return badge;
-            }
+        @Override
+        public void write(int b) {
+            ensureCapacity(size + 1);
+            bytes[size++] = (byte) b;
         }
 
-        // Metodo toString per ottenere una rappresentazione testuale dell'oggetto User
         @Override
-        public String toString() {
-            return "User{" +
-                    "username='" + username + '\'' +
-                    ", password='" + password + '\'' +
-                    ", isLoggedIn=" + isLoggedIn +
-                    ", level=" + level.getBadge() + // Otteniamo il distintivo del livello
-                    ", numberOfReviewsWritten=" + numberOfReviewsWritten +
-                    '}';
+        public void write(byte[] source, int offset, int length) {
+            ensureCapacity(size + length);
+            System.arraycopy(source, offset, bytes, size, length);
+            size += length;
         }
-    }
-    private static class Ratings {
-        private double cleaning;
-        private double position;
-        private double services;
-        private double quality;
 
-        public Ratings(double cleaning, double position, double services, double quality) {
-            this.cleaning = cleaning;
-            this.position = position;
-            this.services = services;
-            this.quality = quality;
+        private void ensureCapacity(int required) {
+            if (required > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(required, bytes.length * 2));
+            }
         }
 
-        public double getCleaning() {
-            return cleaning;
+        // Scrive la lunghezza della risposta e copia il frame in un buffer diretto del pool
+        public ByteBuffer toFrame() {
+            int length = size - Integer.BYTES;
+            ByteBuffer buffer = bufferPool.acquire(size);
+            buffer.putInt(length).put(bytes, Integer.BYTES, length).flip();
+            return buffer;
+        }
+    }
+    private static class HotelWireAdapter extends TypeAdapter<Hotel> {
+        // Serializza un hotel per il client, senza passare dalla reflection e omettendo la normalizzazione
+
+        // Campi selezionabili nelle query di classifica, 0 indica l'hotel completo
+        public static final int FIELD_ID = 1;
+        public static final int FIELD_NAME = 2;
+        public static final int FIELD_RATE = 4;
+        public static final int FIELD_RANKING_SCORE = 8;
+        public static final int FIELD_CITY = 16;
+        public static final int ALL_FIELDS = FIELD_ID | FIELD_NAME | FIELD_RATE | FIELD_RANKING_SCORE | FIELD_CITY;
+
+        // Converte i nomi dei campi nella maschera corrispondente, -1 se un campo non è selezionabile
+        public static int parseFields(String[] names) {
+            int fields = 0;
+            for (String name : names) {
+                switch (name) {
+                    case "":
+                        break;
+                    case "id":
+                        fields |= FIELD_ID;
+                        break;
+                    case "name":
+                        fields |= FIELD_NAME;
+                        break;
+                    case "city":
+                        fields |= FIELD_CITY;
+                        break;
+                    case "rate":
+                        fields |= FIELD_RATE;
+                        break;
+                    case "rankingScore":
+                        fields |= FIELD_RANKING_SCORE;
+                        break;
+                    default:
+                        return -1;
+                }
+            }
+            return fields;
         }
 
-        public void setCleaning(double cleaning) {
-            this.cleaning = cleaning;
+        // Serializza solo i campi indicati dalla maschera, o l'hotel completo se la maschera è 0
+        public void write(JsonWriter writer, Hotel hotel, int fields) throws IOException {
+            if (fields == 0) {
+                write(writer, hotel);
+                return;
+            }
+            writer.beginObject();
+            if ((fields & FIELD_ID) != 0) {
+                writer.name("id").value(hotel.getId());
+            }
+            if ((fields & FIELD_NAME) != 0) {
+                writer.name("name").value(hotel.getName());
+            }
+            if ((fields & FIELD_CITY) != 0) {
+                writer.name("city").value(hotel.getCity());
+            }
+            if ((fields & FIELD_RATE) != 0) {
+                writer.name("rate").value((Number) hotel.getRate());
+            }
+            if ((fields & FIELD_RANKING_SCORE) != 0) {
+                writer.name("rankingScore").value(hotel.getRankingScore());
+            }
+            writer.endObject();
         }
 
-        public double getPosition() {
-            return position;
+        @Override
+        public void write(JsonWriter writer, Hotel hotel) throws IOException {
+            if (hotel == null) {
+                writer.nullValue();
+                return;
+            }
+            writer.beginObject();
+            writer.name("id").value(hotel.getId());
+            writer.name("name").value(hotel.getName());
+            writer.name("description").value(hotel.getDescription());
+            writer.name("city").value(hotel.getCity());
+            writer.name("phone").value(hotel.getPhone());
+            writer.name("services");
+            writer.beginArray();
+            if (hotel.getServices() != null) {
+                for (String service : hotel.getServices()) {
+                    writer.value(service);
+                }
+            }
+            writer.endArray();
+            writer.name("rate").value((Number) hotel.getRate());
+            Ratings ratings = hotel.getRatings();
+            if (ratings != null) {
+                writer.name("ratings");
+                writer.beginObject();
+                writer.name("cleaning").value(ratings.getCleaning());
+                writer.name("position").value(ratings.getPosition());
+                writer.name("services").value(ratings.getServices());
+                writer.name("quality").value(ratings.getQuality());
+                writer.endObject();
+            }
+            writer.name("rankingScore").value(hotel.getRankingScore());
+            writer.name("numberOfReviews").value(hotel.getNumberOfReviews());
+            writer.endObject();
         }
 
-        public void setPosition(double position) {
-            this.position = position;
+        @Override
+        public Hotel read(JsonReader reader) {
+            // Gli hotel vengono letti solo dai file JSON, con la Gson per il disco
+            throw new UnsupportedOperationException("HotelWireAdapter supporta solo la serializzazione");
+        }
+    }
+    private static class HotelIndex {
+        // Hotel indicizzati per città e nome normalizzato (minuscolo)
+        private final ConcurrentHashMap<String, Hotel> byCityAndName = new ConcurrentHashMap<>();
+        // Hotel indicizzati per id
+        private final ConcurrentHashMap<Integer, Hotel> byId = new ConcurrentHashMap<>();
+
+        public void add(Hotel hotel) {
+            byCityAndName.put(key(hotel.getCity(), hotel.getName()), hotel);
+            byId.put(hotel.getId(), hotel);
         }
 
-        public double getServices() {
-            return services;
+        // Restituisce l'hotel con quel nome nella città (ignorando maiuscole e minuscole), null se non esiste
+        public Hotel find(String city, String name) {
+            return byCityAndName.get(key(city, name));
         }
 
-        public void setServices(double services) {
-            this.services = services;
+        // Restituisce l'hotel con quell'id, null se non esiste
+        public Hotel findById(int id) {
+            return byId.get(id);
         }
 
-        public double getQuality() {
-            return quality;
+        private static String key(String city, String name) {
+            return city + '\0' + name.toLowerCase(Locale.ROOT);
+        }
+    }
+    private static class HotelNameIndex {
+        // Per ogni città, e per tutte le città sotto la chiave "", un array ordinato delle parti finali dei nomi (minuscole)
+        // che iniziano all'inizio di una parola: "Hotel Roma 1" produce "hotel roma 1", "roma 1" e "1". I suggerimenti
+        // per un prefisso sono un intervallo contiguo dell'array, trovato con una ricerca binaria.
+        // L'indice viene costruito da loadHotelsFromJSON prima che il server accetti richieste e poi soltanto letto
+        private static final String ALL_CITIES = "";
+        private final Map<String, Entries> scopes = new HashMap<>();
+
+        private static class Entries {
+            final String[] keys;
+            final Hotel[] hotels;
+
+            Entries(String[] keys, Hotel[] hotels) {
+                this.keys = keys;
+                this.hotels = hotels;
+            }
         }
 
-        public void setQuality(double quality) {
-            this.quality = quality;
+        public void build(Map<String, List<Hotel>> hotelsGroupedByCity) {
+            List<Hotel> allHotels = new ArrayList<>();
+            for (Map.Entry<String, List<Hotel>> entry : hotelsGroupedByCity.entrySet()) {
+                scopes.put(entry.getKey(), entries(entry.getValue()));
+                allHotels.addAll(entry.getValue());
+            }
+            scopes.put(ALL_CITIES, entries(allHotels));
         }
 
-        public double calculateAverage() {
-            double sum = cleaning + position + services + quality;
-            return sum / 4.0;
+        private static Entries entries(List<Hotel> hotels) {
+            List<String> keys = new ArrayList<>();
+            List<Hotel> owners = new ArrayList<>();
+            for (Hotel hotel : hotels) {
+                String name = hotel.getName().toLowerCase(Locale.ROOT);
+                for (int i = 0; i < name.length(); i++) {
+                    boolean wordStart = Character.isLetterOrDigit(name.charAt(i)) && (i == 0 || !Character.isLetterOrDigit(name.charAt(i - 1)));
+                    if (wordStart) {
+                        keys.add(name.substring(i));
+                        owners.add(hotel);
+                    }
+                }
+            }
+            Integer[] order = new Integer[keys.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> keys.get(a).compareTo(keys.get(b)));
+            String[] sortedKeys = new String[order.length];
+            Hotel[] sortedHotels = new Hotel[order.length];
+            for (int i = 0; i < order.length; i++) {
+                sortedKeys[i] = keys.get(order[i]);
+                sortedHotels[i] = owners.get(order[i]);
+            }
+            return new Entries(sortedKeys, sortedHotels);
         }
 
-        @Override
+        // Restituisce al massimo limit hotel della città (o di tutte le città se city è vuota) con una parola del nome che
+        // inizia con il prefisso, ordinati per rankingScore decrescente
+        public List<Hotel> complete(String city, String prefix, int limit) {
+            Entries entries = scopes.get(city);
+            if (entries == null) {
+                return Collections.emptyList();
+            }
+            String key = prefix.toLowerCase(Locale.ROOT).trim();
+
+            // Primo elemento non minore del prefisso
+            int low = 0;
+            int high = entries.keys.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (entries.keys[mid].compareTo(key) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+
+            // Si tengono solo i limit migliori (min-heap per punteggio), un hotel può comparire più volte nell'intervallo
+            Set<Hotel> seen = new HashSet<>();
+            PriorityQueue<RankedHotel> best = new PriorityQueue<>();
+            for (int i = low; i < entries.keys.length && entries.keys[i].startsWith(key); i++) {
+                Hotel hotel = entries.hotels[i];
+                if (!seen.add(hotel)) {
+                    continue;
+                }
+                best.add(new RankedHotel(hotel));
+                if (best.size() > limit) {
+                    best.poll();
+                }
+            }
+            List<Hotel> result = new ArrayList<>(best.size());
+            while (!best.isEmpty()) {
+                result.add(best.poll().hotel);
+            }
+            Collections.reverse(result);
+            return result;
+        }
+
+        // Hotel con il rankingScore letto una sola volta, ordinato dal peggiore al migliore come nella classifica (a parità di punteggio per nome)
+        private static class RankedHotel implements Comparable<RankedHotel> {
+            final Hotel hotel;
+            final double score;
+
+            RankedHotel(Hotel hotel) {
+                this.hotel = hotel;
+                this.score = hotel.getRankingScore();
+            }
+
+            // Ordine inverso rispetto alla classifica della città (dal peggiore al migliore), a parità di punteggio
+            // con gli stessi criteri sul nome
+            @Override
+            public int compareTo(RankedHotel other) {
+                return CityRanking.compare(other.score, other.hotel.getName(), score, hotel.getName());
+            }
+        }
+    }
+    private static class ServiceIndex {
+        // I nomi dei servizi (senza distinzione tra maiuscole e minuscole) vengono internati in piccoli interi e per ogni
+        // città e servizio una bitmap indica quali hotel lo offrono. I servizi non cambiano dopo il caricamento: l'indice
+        // viene riempito solo da loadHotelsFromJSON, prima che il server accetti richieste, e poi soltanto letto
+        private final Map<String, Integer> serviceIds = new HashMap<>();
+        private final Map<String, CityServices> cities = new HashMap<>();
+
+        private static class CityServices {
+            // Posizione nelle bitmap di ogni hotel della città, per id
+            final Map<Integer, Integer> positions = new HashMap<>();
+            // Bitmap degli hotel per id di servizio
+            final List<BitSet> byService = new ArrayList<>();
+            // Tutti gli hotel della città, risultato di un filtro senza servizi
+            final BitSet all = new BitSet();
+        }
+
+        public synchronized void add(Hotel hotel) {
+            CityServices city = cities.computeIfAbsent(hotel.getCity(), k -> new CityServices());
+            int position = city.positions.size();
+            city.positions.put(hotel.getId(), position);
+            city.all.set(position);
+            if (hotel.getServices() == null) {
+                return;
+            }
+            for (String service : hotel.getServices()) {
+                int id = serviceIds.computeIfAbsent(service.toLowerCase(Locale.ROOT), k -> serviceIds.size());
+                while (city.byService.size() <= id) {
+                    city.byService.add(new BitSet());
+                }
+                city.byService.get(id).set(position);
+            }
+        }
+
+        // Restituisce la bitmap degli hotel della città che offrono tutti i servizi indicati, da non modificare se non ci sono servizi
+        public BitSet matching(String city, List<String> services) {
+            CityServices cityServices = cities.get(city);
+            if (cityServices == null) {
+                return new BitSet();
+            }
+            if (services.isEmpty()) {
+                return cityServices.all;
+            }
+            BitSet result = null;
+            for (String service : services) {
+                Integer id = serviceIds.get(service.toLowerCase(Locale.ROOT));
+                if (id == null || id >= cityServices.byService.size()) {
+                    // Servizio sconosciuto o non offerto da nessun hotel della città
+                    return new BitSet();
+                }
+                if (result == null) {
+                    result = (BitSet) cityServices.byService.get(id).clone();
+                } else {
+                    result.and(cityServices.byService.get(id));
+                }
+            }
+            return result;
+        }
+
+        // Restituisce true se almeno un hotel offre il servizio
+        public boolean isKnown(String service) {
+            return serviceIds.containsKey(service.toLowerCase(Locale.ROOT));
+        }
+
+        // Posizione dell'hotel nelle bitmap della sua città, -1 se non indicizzato
+        public int positionOf(String city, Hotel hotel) {
+            CityServices cityServices = cities.get(city);
+            Integer position = cityServices == null ? null : cityServices.positions.get(hotel.getId());
+            return position == null ? -1 : position;
+        }
+    }
+    private static class HotelFilter {
+        // Criteri di una ricerca filtrata: servizi richiesti e minimi di rate e delle valutazioni singole
+        // (pulizia, posizione, servizi, qualità), nell'ordine in cui compaiono nella richiesta
+        public static final int SCORES = 5;
+
+        final List<String> services;
+        final float[] minimums;
+
+        HotelFilter(List<String> services, float[] minimums) {
+            this.services = services;
+            this.minimums = minimums;
+        }
+
+        // Un minimo vuoto non filtra, un valore non numerico diventa NaN e viene rifiutato
+        static float parseMinimum(String value) {
+            if (value.isEmpty()) {
+                return 0;
+            }
+            try {
+                return Float.parseFloat(value);
+            } catch (NumberFormatException e) {
+                return Float.NaN;
+            }
+        }
+
+        boolean hasValidMinimums() {
+            for (float minimum : minimums) {
+                // Il confronto è falso anche per NaN
+                if (!(minimum >= 0 && minimum <= 5)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean acceptsScores(HotelScores scores) {
+            Ratings ratings = scores.getRatings();
+            return scores.getRate() >= minimums[0]
+                    && ratings.getCleaning() >= minimums[1]
+                    && ratings.getPosition() >= minimums[2]
+                    && ratings.getServices() >= minimums[3]
+                    && ratings.getQuality() >= minimums[4];
+        }
+
+        // Un filtro è canonico se tutti i servizi esistono e i minimi sono multipli di mezzo punto:
+        // solo questi filtri, in numero limitato, vengono messi in cache
+        boolean isCanonical() {
+            for (String service : services) {
+                if (!serviceIndex.isKnown(service)) {
+                    return false;
+                }
+            }
+            for (float minimum : minimums) {
+                if (minimum * 2 != Math.rint(minimum * 2)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Chiave della risposta in cache: i servizi vengono ordinati e ripetuti una sola volta, l'ordine in cui sono
+        // richiesti non cambia il risultato
+        String key() {
+            Set<String> sorted = new TreeSet<>();
+            for (String service : services) {
+                sorted.add(service.toLowerCase(Locale.ROOT));
+            }
+            return String.join(".", sorted) + "\0" + Arrays.toString(minimums);
+        }
+    }
+    private static class CityRanking implements Iterable<Hotel> {
+        // Classifica corrente della città: hotel ordinati e punteggi con cui sono stati ordinati. Non viene mai modificata,
+        // ma sostituita in blocco ad ogni ricalcolo; le modifiche sono serializzate, le letture non prendono lock
+        private final AtomicReference<Ranking> ranked;
+
+        public CityRanking(List<Hotel> hotels) {
+            this.ranked = new AtomicReference<>(rank(hotels.toArray(new Hotel[0])));
+        }
+
+        // Restituisce la classifica corrente, da non modificare
+        public Hotel[] snapshot() {
+            return ranked.get().hotels;
+        }
+
+        // Restituisce il primo hotel della classifica, null se la città non ha hotel
+        public Hotel top() {
+            Hotel[] current = ranked.get().hotels;
+            return current.length == 0 ? null : current[0];
+        }
+
+        // Ricalcola l'intera classifica a parte e la pubblica in blocco, restituisce true se l'ordine degli hotel è cambiato
+        public synchronized boolean rerank() {
+            Ranking current = ranked.get();
+            Ranking next = rank(current.hotels);
+            // Si pubblica comunque, i punteggi memorizzati devono restare quelli correnti
+            ranked.set(next);
+            return !Arrays.equals(current.hotels, next.hotels);
+        }
+
+        // Riposiziona solo gli hotel indicati, gli unici il cui punteggio è cambiato dall'ultima pubblicazione:
+        // posizione attuale e nuova posizione si trovano con una ricerca binaria, O(log n) confronti per hotel
+        public synchronized boolean reposition(Collection<Hotel> moved) {
+            Ranking current = ranked.get();
+            Hotel[] hotels = current.hotels.clone();
+            double[] scores = current.scores.clone();
+            int n = hotels.length;
+            boolean changed = false;
+            for (Hotel hotel : moved) {
+                int from = indexOf(hotels, scores, n, hotel);
+                if (from < 0) {
+                    // L'hotel non si trova dove previsto, si ricalcola l'intera classifica
+                    return rerank();
+                }
+                double score = hotel.getRankingScore();
+                // Rimuove l'hotel e lo reinserisce nella posizione corrispondente al nuovo punteggio
+                System.arraycopy(hotels, from + 1, hotels, from, n - from - 1);
+                System.arraycopy(scores, from + 1, scores, from, n - from - 1);
+                int to = insertionPoint(hotels, scores, n - 1, score, hotel.getName());
+                System.arraycopy(hotels, to, hotels, to + 1, n - 1 - to);
+                System.arraycopy(scores, to, scores, to + 1, n - 1 - to);
+                hotels[to] = hotel;
+                scores[to] = score;
+                hotel.setRankedScore(score);
+                changed |= from != to;
+            }
+            ranked.set(new Ranking(hotels, scores));
+            return changed;
+        }
+
+        @Override
+        public Iterator<Hotel> iterator() {
+            return Arrays.asList(ranked.get().hotels).iterator();
+        }
+
+        // Ordina gli hotel leggendo il rankingScore una sola volta per hotel: un aggiornamento concorrente
+        // durante l'ordinamento non può rendere il confronto incoerente
+        private static Ranking rank(Hotel[] hotels) {
+            double[] capturedScores = new double[hotels.length];
+            Integer[] order = new Integer[hotels.length];
+            for (int i = 0; i < hotels.length; i++) {
+                capturedScores[i] = hotels[i].getRankingScore();
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> compare(capturedScores[a], hotels[a].getName(), capturedScores[b], hotels[b].getName()));
+            Hotel[] sorted = new Hotel[hotels.length];
+            double[] sortedScores = new double[hotels.length];
+            for (int i = 0; i < order.length; i++) {
+                sorted[i] = hotels[order[i]];
+                sortedScores[i] = capturedScores[order[i]];
+                sorted[i].setRankedScore(sortedScores[i]);
+            }
+            return new Ranking(sorted, sortedScores);
+        }
+
+        // Posizione dell'hotel nella classifica, cercata con il punteggio con cui vi è stato inserito; -1 se non presente
+        private static int indexOf(Hotel[] hotels, double[] scores, int length, Hotel hotel) {
+            int i = insertionPoint(hotels, scores, length, hotel.getRankedScore(), hotel.getName()) - 1;
+            return i >= 0 && hotels[i] == hotel ? i : -1;
+        }
+
+        // Prima posizione (tra le prime length) il cui hotel viene dopo (score, name) nella classifica
+        private static int insertionPoint(Hotel[] hotels, double[] scores, int length, double score, String name) {
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (compare(scores[mid], hotels[mid].getName(), score, name) <= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        private static class Ranking {
+            private final Hotel[] hotels;
+            private final double[] scores;
+
+            public Ranking(Hotel[] hotels, double[] scores) {
+                this.hotels = hotels;
+                this.scores = scores;
+            }
+        }
+
+        // Ordinamento della classifica
+        public static int compare(double score, String name, double otherScore, String otherName) {
+            // Confronto basato sul rankingScore (ordine decrescente)
+            int scoreComparison = Double.compare(otherScore, score);
+        
+            if (scoreComparison != 0) {
+                return scoreComparison;
+            } else {
+                // Confronto per la lunghezza dei nomi in caso di score uguale
+                int lengthComparison = name.length() - otherName.length();
+                if (lengthComparison != 0) {
+                    return lengthComparison;
+                } else {
+                    // Se le stringhe hanno la stessa lunghezza, si esegue un confrono lessicografico
+                    return name.compareTo(otherName);
+                }
+            }
+        }
+    }
+    private static class CityStats {
+
+        private double maxQualityScore; // Il massimo punteggio di qualità per gli hotel in questa città
+        private double maxQuantityScore; // Il massimo punteggio di quantità per gli hotel in questa città
+        private double maxRelevanceAnchor; // Il massimo punteggio di attualità (in forma indipendente dal tempo) per gli hotel in questa città
+        private Hotel maxRelevanceHotel; // L'hotel che detiene il massimo punteggio di attualità
+    
+        public CityStats() {
+            this.maxQualityScore = Double.MIN_VALUE; // Inizializza i massimi a valori molto bassi
+            this.maxQuantityScore = Double.MIN_VALUE;
+            this.maxRelevanceAnchor = Double.NEGATIVE_INFINITY;
+        }
+
+        // Restituisce true se sono stati rinormalizzati anche gli altri hotel della città, false se è cambiato solo h
+        public synchronized boolean normalizeAndUpdateMaxScores(CityRanking hotels, Hotel h) {
+            boolean updatedQuality = false;
+            boolean updatedQuantity = false;
+            boolean updatedRelevance = updateMaxRelevance(hotels, h);
+            double newQualityScore = h.getOriginalQualityScore();
+            double newQuantityScore = h.getOriginalQuantityScore();
+
+            // Aggiorna i massimi se i punteggi correnti sono più alti
+            if (newQualityScore > maxQualityScore) {
+                maxQualityScore = newQualityScore;
+                updatedQuality = true;
+            }
+            if (newQuantityScore > maxQuantityScore) {
+                maxQuantityScore = newQuantityScore;
+                updatedQuantity = true;
+            }
+
+            // Se almeno uno dei massimi è stato aggiornato, normalizza gli hotel tranne quello in particolare del quale si deve normalizzare tutti i valori non solo quelli che hanno riscontrato un nuovo massimo
+            // Se nessun massimo è cambiato i punteggi normalizzati degli altri hotel restano validi e l'aggiornamento costa O(1)
+            if (updatedQuality || updatedQuantity || updatedRelevance) {
+                for (Hotel hotel : hotels) {
+                    if(!hotel.equals(h)){
+                        double originalQualityScore = hotel.getOriginalQualityScore();
+                        double originalQuantityScore = hotel.getOriginalQuantityScore();
+                        // questo peche nel caso in cui non si ha un aggiornamento dei valori di utilizzano i valori di default
+                        double normalizedQuality = hotel.getNormalizedQualityScore();
+                        double normalizedQuantity = hotel.getNormalizedQuantityScore();
+                        double normalizedRelevance = hotel.getNormalizedRelevanceScore();
+                    
+                        // Normalizza i punteggi degli hotel se sono stati aggiornati i massimi
+                        if (updatedQuality) {
+                            normalizedQuality = normalizeValue(originalQualityScore, maxQualityScore);
+                            hotel.setNormalizedQualityScore(normalizedQuality);
+                        }
+                        if (updatedQuantity) {
+                            normalizedQuantity = normalizeValue(originalQuantityScore, maxQuantityScore);
+                            hotel.setNormalizedQuantityScore(normalizedQuantity);
+                        }
+                    
+                        if (updatedRelevance) {
+                            normalizedRelevance = normalizeRelevance(hotel.getRelevanceAnchor());
+                            hotel.setNormalizedRelevanceScore(normalizedRelevance);
+                        }
+                    
+                        // Calcola e imposta il punteggio complessivo di ranking per l'hotel
+                        double rankingScore = normalizedQuality + normalizedQuantity + normalizedRelevance;
+                        hotel.setRankingScore(rankingScore);
+                    }
+                }
+            }
+                       // Sia nel caso di nessun massimo aggiornato che nella'altro, normalizza e imposta i punteggi dell'hotel specificato
+            double normalizedQuality = normalizeValue(h.getOriginalQualityScore(),maxQualityScore);
+            double normalizedQuantity = normalizeValue(h.getOriginalQuantityScore(),maxQuantityScore);
+            double normalizedRelevance = normalizeRelevance(h.getRelevanceAnchor());
+            h.setNormalizedQualityScore(normalizedQuality);
+            h.setNormalizedQuantityScore(normalizedQuantity);
+            h.setNormalizedRelevanceScore(normalizedRelevance);
+            h.setRankingScore(normalizedQuality + normalizedQuantity + normalizedRelevance);
+            return updatedQuality || updatedQuantity || updatedRelevance;
+        }
+
+        // Metodo privato per la normalizzazione dei punteggi
+        private double normalizeValue(double value, double maxValue) {
+            if (maxValue == 0) {
+                // Gestione del caso in cui il valore massimo è zero per evitare divisioni per zero
+                return 0.0; 
+            } else {
+                // Normalizza il valore rispetto al massimo e scala il risultato tra 0 e 10
+                return 10.0 * (value / maxValue);
+            }
+        }
+
+        // Ricalcola il massimo di attualità e la relativa normalizzazione per tutti gli hotel della città (usato all'avvio)
+        public synchronized void rebuildRelevance(CityRanking hotels) {
+            rescanMaxRelevance(hotels);
+            for (Hotel hotel : hotels) {
+                double normalizedRelevance = normalizeRelevance(hotel.getRelevanceAnchor());
+                hotel.setNormalizedRelevanceScore(normalizedRelevance);
+                hotel.setRankingScore(hotel.getNormalizedQualityScore() + hotel.getNormalizedQuantityScore() + normalizedRelevance);
+            }
+        }
+
+        // Aggiorna il massimo di attualità dopo una nuova recensione dell'hotel h, restituisce true se il massimo è cambiato
+        private boolean updateMaxRelevance(CityRanking hotels, Hotel h) {
+            double anchor = h.getRelevanceAnchor();
+            if (anchor > maxRelevanceAnchor) {
+                maxRelevanceAnchor = anchor;
+                maxRelevanceHotel = h;
+                return true;
+            }
+            if (h == maxRelevanceHotel && anchor < maxRelevanceAnchor) {
+                // L'hotel che deteneva il massimo è sceso (la media è diminuita), si cerca il nuovo massimo
+                rescanMaxRelevance(hotels);
+                return true;
+            }
+            return false;
+        }
+
+        private void rescanMaxRelevance(CityRanking hotels) {
+            maxRelevanceAnchor = Double.NEGATIVE_INFINITY;
+            maxRelevanceHotel = null;
+            for (Hotel hotel : hotels) {
+                double anchor = hotel.getRelevanceAnchor();
+                if (anchor > maxRelevanceAnchor) {
+                    maxRelevanceAnchor = anchor;
+                    maxRelevanceHotel = hotel;
+                }
+            }
+        }
+
+        // Normalizza il punteggio di attualità rispetto al massimo della città tra 0 e 10: il rapporto tra i valori
+        // decaduti allo stesso istante è exp(ancora - ancoraMassima), indipendente dal tempo corrente
+        private double normalizeRelevance(double anchor) {
+            if (anchor == Double.NEGATIVE_INFINITY || maxRelevanceAnchor == Double.NEGATIVE_INFINITY) {
+                return 0.0;
+            }
+            return 10.0 * Math.exp(anchor - maxRelevanceAnchor);
+        }
+    }
+    private static class User {
+        private String username;
+        private String password;
+        private boolean isLoggedIn;
+        private int numberOfReviewsWritten = 0;
+        private Level level;
+        private int idClient; 
+
+        // Costruttore della classe User
+        public User(String username, String password) {
+            this.username = username;
+            this.password = password;
+            this.isLoggedIn = false; // L'utente è inizialmente disconnesso
+            this.level = Level.RECENSORE; // Livello iniziale
+            this.idClient = -1; // Valore nullo per l'ID del client
+
+        }
+
+        // Lo stato di accesso, l'ID del client e il contatore delle recensioni vengono letti e modificati solo sotto il
+        // lock dell'utente: login concorrenti dello stesso utente e recensioni in parallelo non perdono aggiornamenti
+
+        // Copia dell'utente per gli snapshot
+        public synchronized User copy() {
+            User copy = new User(username, password);
+            copy.isLoggedIn = isLoggedIn;
+            copy.numberOfReviewsWritten = numberOfReviewsWritten;
+            copy.level = level;
+            copy.idClient = idClient;
+            return copy;
+        }
+    
+        public synchronized int getIdClient() {
+            return idClient;
+        }
+
+        public String getUsername(){
+            return this.username;
+        }
+
+        public String getPassword(){
+            return this.password;
+        }
+
+        public synchronized boolean isLoggedIn() {
+            return this.isLoggedIn;
+        }
+
+        // Esegue l'accesso dal client indicato, false se l'utente è già loggato
+        public synchronized boolean login(int newIdClient) {
+            if (isLoggedIn) {
+                return false;
+            }
+            this.isLoggedIn = true;
+            this.idClient = newIdClient;
+            usersDirty.set(true);
+            return true;
+        }
+
+        // Esegue il logout, false se l'utente non era loggato
+        public synchronized boolean logout() {
+            if (!isLoggedIn) {
+                return false;
+            }
+            this.isLoggedIn = false;
+            this.idClient = -1;
+            usersDirty.set(true);
+            return true;
+        }
+
+        // Esegue il logout solo se l'utente è loggato dal client indicato
+        public synchronized void logoutClient(int clientId) {
+            if (idClient == clientId) {
+                logout();
+            }
+        }
+
+        public synchronized void increaseNumberOfReviewsWritten(){
+            this.numberOfReviewsWritten++;
+            usersDirty.set(true);
+            updateLevel(); // Aggiorna il livello ogni volta che viene aggiunta una recensione
+
+        }
+
+        // Metodo per aggiornare il livello dell'utente in base al numero di recensioni
+        private void updateLevel() {
+            if (numberOfReviewsWritten >= Level.RECENSORE_ESPERTO.getRequiredReviews() && numberOfReviewsWritten < Level.CONTRIBUTORE.getRequiredReviews()) {
+                level = Level.RECENSORE_ESPERTO;
+            } else if (numberOfReviewsWritten >= Level.CONTRIBUTORE.getRequiredReviews() && numberOfReviewsWritten < Level.CONTRIBUTORE_ESPERTO.getRequiredReviews()) {
+                level = Level.CONTRIBUTORE;
+            } else if (numberOfReviewsWritten >= Level.CONTRIBUTORE_ESPERTO.getRequiredReviews() && numberOfReviewsWritten < Level.CONTRIBUTORE_SUPER.getRequiredReviews()) {
+                level = Level.CONTRIBUTORE_ESPERTO;
+            } else if (numberOfReviewsWritten >= Level.CONTRIBUTORE_SUPER.getRequiredReviews()) {
+                level = Level.CONTRIBUTORE_SUPER;
+            }
+        }
+
+        public synchronized String getLevel(){
+            return this.level.getBadge();
+        }
+        // Enum per i livelli di esperienza e i relativi distintivi
+        public enum Level {
+            RECENSORE(0, "Recensore"),
+            RECENSORE_ESPERTO(10, "Recensore esperto"),
+            CONTRIBUTORE(20, "Contributore"),
+            CONTRIBUTORE_ESPERTO(30, "Contributore esperto"),
+            CONTRIBUTORE_SUPER(40, "Contributore Super");
+
+            private final int requiredReviews;
+            private final String badge;
+
+            Level(int requiredReviews, String badge) {
+                this.requiredReviews = requiredReviews;
+                this.badge = badge;
+            }
+
+            public int getRequiredReviews() {
+                return requiredReviews;
+            }
+
+            public String getBadge() {
+                return badge;
+            }
+        }
+
+        // Metodo toString per ottenere una rappresentazione testuale dell'oggetto User
+        @Override
+        public String toString() {
+            return "User{" +
+                    "username='" + username + '\'' +
+                    ", password='" + password + '\'' +
+                    ", isLoggedIn=" + isLoggedIn +
+                    ", level=" + level.getBadge() + // Otteniamo il distintivo del livello
+                    ", numberOfReviewsWritten=" + numberOfReviewsWritten +
+                    '}';
+        }
+    }
+    private static class Ratings {
+        private double cleaning;
+        private double position;
+        private double services;
+        private double quality;
+
+        public Ratings(double cleaning, double position, double services, double quality) {
+            this.cleaning = cleaning;
+            this.position = position;
+            this.services = services;
+            this.quality = quality;
+        }
+
+        public double getCleaning() {
+            return cleaning;
+        }
+
+        public void setCleaning(double cleaning) {
+            this.cleaning = cleaning;
+        }
+
+        public double getPosition() {
+            return position;
+        }
+
+        public void setPosition(double position) {
+            this.position = position;
+        }
+
+        public double getServices() {
+            return services;
+        }
+
+        public void setServices(double services) {
+            this.services = services;
+        }
+
+        public double getQuality() {
+            return quality;
+        }
+
+        public void setQuality(double quality) {
+            this.quality = quality;
+        }
+
+        public double calculateAverage() {
+            double sum = cleaning + position + services + quality;
+            return sum / 4.0;
+        }
+
+        @Override
+        public String toString() {
+            return "Ratings{" +
+                    "cleaning=" + cleaning +
+                    ", position=" + position +
+                    ", services=" + services +
+                    ", quality=" + quality +
+                    '}';
+        }
+
+
+}  
+    private static class HotelScores {
+        // Istantanea immutabile dei totali delle recensioni di un hotel: le medie vengono derivate in lettura
+        private final int count;
+        private final double rateSum;
+        private final double cleaningSum;
+        private final double positionSum;
+        private final double servicesSum;
+        private final double qualitySum;
+        private final int relevanceSamples; // Numero di recensioni che contribuiscono a relevanceLogSum
+        private final double relevanceLogSum; // ln(somma di e^(λ·tempoRecensione))
+
+        private HotelScores(int count, double rateSum, double cleaningSum, double positionSum, double servicesSum, double qualitySum, int relevanceSamples, double relevanceLogSum) {
+            this.count = count;
+            this.rateSum = rateSum;
+            this.cleaningSum = cleaningSum;
+            this.positionSum = positionSum;
+            this.servicesSum = servicesSum;
+            this.qualitySum = qualitySum;
+            this.relevanceSamples = relevanceSamples;
+            this.relevanceLogSum = relevanceLogSum;
+        }
+
+        public static HotelScores fromAverages(int count, float rate, Ratings ratings) {
+            if (ratings == null) {
+                ratings = new Ratings(0, 0, 0, 0);
+            }
+            return new HotelScores(count, (double) rate * count, ratings.getCleaning() * count, ratings.getPosition() * count,
+                    ratings.getServices() * count, ratings.getQuality() * count, 0, Double.NEGATIVE_INFINITY);
+        }
+
+        public HotelScores withReview(Review review) {
+            Ratings r = review.getSingleScores();
+            return new HotelScores(count + 1, rateSum + review.getGlobalScore(), cleaningSum + r.getCleaning(), positionSum + r.getPosition(),
+                    servicesSum + r.getServices(), qualitySum + r.getQuality(), relevanceSamples, relevanceLogSum);
+        }
+
+        public HotelScores withRelevanceSample(double logWeight) {
+            double logSum = relevanceSamples == 0 ? logWeight : logAddExp(relevanceLogSum, logWeight);
+            return new HotelScores(count, rateSum, cleaningSum, positionSum, servicesSum, qualitySum, relevanceSamples + 1, logSum);
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public float getRate() {
+            return count == 0 ? 0.0f : (float) (rateSum / count);
+        }
+
+        // Restituisce una nuova copia delle valutazioni medie, mai condivisa con altri hotel o recensioni
+        public Ratings getRatings() {
+            if (count == 0) {
+                return new Ratings(0, 0, 0, 0);
+            }
+            return new Ratings(cleaningSum / count, positionSum / count, servicesSum / count, qualitySum / count);
+        }
+
+        public double getRelevanceAnchor() {
+            return relevanceSamples == 0 ? Double.NEGATIVE_INFINITY : relevanceLogSum - Math.log(relevanceSamples);
+        }
+    }
+    private class Hotel implements Comparable<Hotel> {
+        private int id;
+        private String name;
+        private String description;
+        private String city;
+        private String phone;
+        private List<String> services;
+        private float rate;
+        private Ratings ratings;
+        private volatile double rankingScore;
+        private transient double rankedScore; // Punteggio con cui l'hotel è posizionato nella classifica pubblicata della città
+        private int numberOfReviews; // Numero di recensioni ricevute
+        private Normalization normalization; // Oggetto che serve 
+        // Totali correnti delle recensioni, aggiornati via CAS; rate, ratings e numberOfReviews ne sono la copia per il file JSON
+        private transient AtomicReference<HotelScores> scores;
+
+
+        // Override del metodo compareTo per definire l'ordinamento degli oggetti Hotel
+        @Override
+        public int compareTo(Hotel other) {
+            return CityRanking.compare(this.rankingScore, this.name, other.rankingScore, other.name);
+        }
+        
+
+        // Classe interna Normalization
+        private class Normalization {
+            private double originalQualityScore;
+            private double originalQuantityScore;
+            private double originalRelevanceScore;
+            private double normalizedQualityScore;
+            private double normalizedQuantityScore;
+            private double normalizedRelevanceScore;
+
+            public void setOriginalQualityScore(double qualityScore) {
+                this.originalQualityScore = qualityScore;
+            }
+            
+            public void setOriginalQuantityScore(double quantityScore) {
+                this.originalQuantityScore = quantityScore;
+            }
+
+            public void setOriginalRelevanceScore(double originalRelevanceScore){
+                this.originalRelevanceScore = originalRelevanceScore;
+            }
+
+            // Getters per i valori originali e normalizzati
+            public double getOriginalQualityScore() {
+
+                return originalQualityScore;
+            }
+
+            public double getOriginalQuantityScore() {
+                return originalQuantityScore;
+            }
+
+            public double getOriginalRelevanceScore() {
+                return originalRelevanceScore;
+            }
+
+            public double getNormalizedQualityScore() {
+                return normalizedQualityScore;
+            }
+
+            public double getNormalizedQuantityScore() {
+                return normalizedQuantityScore;
+            }
+
+            // Setters per i valori normalizzati
+            public void setNormalizedQualityScore(double normalizedQualityScore) {
+                this.normalizedQualityScore = normalizedQualityScore;
+            }
+
+            public void setNormalizedQuantityScore(double normalizedQuantityScore) {
+                this.normalizedQuantityScore = normalizedQuantityScore;
+            }
+
+            public void setNormalizedRelevanceScore(double normalizedRelevanceScore) {
+                this.normalizedRelevanceScore = normalizedRelevanceScore;
+            }
+
+            public double getNormalizedRelevanceScore() {
+                return normalizedRelevanceScore;
+            }
+
+            @Override
+            public String toString() {
+                return "Normalization{" +
+                        "originalQualityScore=" + originalQualityScore +
+                        ", originalQuantityScore=" + originalQuantityScore +
+                        ", originalRelevanceScore=" + originalRelevanceScore +
+                        ", normalizedQualityScore=" + normalizedQualityScore +
+                        ", normalizedQuantityScore=" + normalizedQuantityScore +
+                        ", normalizedRelevanceScore=" + normalizedRelevanceScore +
+                        '}';
+            }
+
+        }
+
+        // Metodi per impostare e recuperare i valori normalizzati
+        public void setOriginalQualityScore(double qualityScore) {
+            this.normalization.setOriginalQualityScore(qualityScore);
+        }
+            
+        public void setOriginalQuantityScore(double quantityScore) {
+            this.normalization.setOriginalQuantityScore(quantityScore);
+        }
+
+        public void setOriginalRelevanceScore(double relevanceScore){
+            this.normalization.setOriginalRelevanceScore(relevanceScore);
+        }
+
+        public double getOriginalQualityScore() {
+            return this.normalization.getOriginalQualityScore();
+        }
+
+        public double getOriginalQuantityScore() {
+            return this.normalization.getOriginalQuantityScore();
+        }
+
+        public double getOriginalRelevanceScore() {
+            return this.normalization.getOriginalRelevanceScore();
+        }
+
+        public double getNormalizedQualityScore() {
+            return this.normalization.getNormalizedQualityScore();
+        }
+
+        public double getNormalizedQuantityScore() {
+            return this.normalization.getNormalizedQuantityScore();
+        }
+
+        public void setNormalizedQualityScore(double normalizedQualityScore) {
+            this.normalization.setNormalizedQualityScore(normalizedQualityScore);
+        }
+
+        public void setNormalizedQuantityScore(double normalizedQuantityScore) {
+            this.normalization.setNormalizedQuantityScore(normalizedQuantityScore);
+        }
+
+        public void setNormalizedRelevanceScore(double normalizedRelevanceScore) {
+            this.normalization.setNormalizedRelevanceScore(normalizedRelevanceScore);
+        }
+
+        public double getNormalizedRelevanceScore() {
+            return this.normalization.getNormalizedRelevanceScore();
+        }
+
+        // Inizializza i totali a partire dai valori medi letti dal file JSON
+        public void initScores() {
+            this.scores = new AtomicReference<>(HotelScores.fromAverages(numberOfReviews, rate, ratings));
+        }
+
+        public HotelScores getScores() {
+            return scores.get();
+        }
+
+        // Aggiunge una recensione ai totali, logWeight è il suo peso di attualità in scala logaritmica (λ·tempoRecensione)
+        public HotelScores addReview(Review review, double logWeight) {
+            return scores.updateAndGet(current -> current.withReview(review).withRelevanceSample(logWeight));
+        }
+
+        // Aggiunge una recensione ai soli totali, il peso di attualità viene aggiunto da rebuildRelevanceScores (riesecuzione del log)
+        public void addReviewScores(Review review) {
+            scores.updateAndGet(current -> current.withReview(review));
+        }
+
+        // Aggiunge il peso di attualità di una recensione già conteggiata nei totali (ricostruzione all'avvio)
+        public void addRelevanceSample(double logWeight) {
+            scores.updateAndGet(current -> current.withRelevanceSample(logWeight));
+        }
+
+        // Punteggio di attualità medio in forma indipendente dal tempo: ln(media dei pesi) + λt, -∞ senza recensioni
+        public double getRelevanceAnchor() {
+            return scores.get().getRelevanceAnchor();
+        }
+
+        // Copia i totali correnti nei campi serializzati, da chiamare prima di scrivere gli hotel su file
+        public void publishScores() {
+            HotelScores current = scores.get();
+            this.rate = current.getRate();
+            this.ratings = current.getRatings();
+            this.numberOfReviews = current.getCount();
+        }
+
+
+        public int getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getCity() {
+            return city;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public String getPhone() {
+            return phone;
+        }
+
+        public List<String> getServices() {
+            return services;
+        }
+
+        public double getRankingScore() {
+            return rankingScore;
+        }
+
+        public float getRate() {
+            return scores.get().getRate();
+        }
+
+        public Ratings getRatings() {
+            return scores.get().getRatings();
+        }
+
+        public void setRankingScore(double rankingScore) {
+            this.rankingScore = rankingScore;
+        }
+
+        public double getRankedScore() {
+            return rankedScore;
+        }
+
+        public void setRankedScore(double rankedScore) {
+            this.rankedScore = rankedScore;
+        }
+
+        public int getNumberOfReviews() {
+            return scores.get().getCount();
+        }
+
+        @Override
+        public String toString() {
+            return "Hotel{" +
+                    "Identificativo:" + id + "  " +
+                    ", Nome hotel:" + name + "  " +
+                    ", description:" + description + "  " +
+                    ", city:" + city + "  " +
+                    ", phone:" + phone + "  " +
+                    ", services:" + services + "  " +
+                    ", rate:" + rate + "  " +
+                    ", ratings:" + (ratings != null ? ratings.toString() : "null") + "  " +
+                    ", rankingScore:" + rankingScore + "  " +
+                    ", numberOfReviews:" + numberOfReviews + "  " +
+                    ", normalization:" + (normalization != null ? normalization.toString() : "null") + "  " +
+                    '}';
+        }
+    }
+    private static class Review {
+
+        private String userId;
+        private long time;
+        private String hotelName;
+        private String city;
+        private int globalScore;
+        private Ratings singleScores;
+
+        public Review(String userId, long time, String hotelName, String city, int globalScore, Ratings singleScores) {
+            this.userId = userId;
+            this.time = time;
+            this.hotelName = hotelName;
+            this.city = city;
+            this.globalScore = globalScore;
+            this.singleScores = singleScores;
+        }
+
+        public String getUserId() {
+            return userId;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public String getHotelName() {
+            return hotelName;
+        }
+
+        public String getCity() {
+            return city;
+        }
+
+        public int getGlobalScore() {
+            return globalScore;
+        }
+
+        public Ratings getSingleScores() {
+            return singleScores;
+        }
+
+        @Override
         public String toString() {
-            return "Ratings{" +
-                    "cleaning=" + cleaning +
-                    ", position=" + position +
-                    ", services=" + services +
-                    ", quality=" + quality +
+            return "Review{" +
+                    "userId='" + userId + '\'' +
+                    ", time=" + time +
+                    ", hotelName='" + hotelName + '\'' +
+                    ", city='" + city + '\'' +
+                    ", globalScore=" + globalScore +
+                    ", singleScores=" + singleScores +
                     '}';
         }
+    }
+    private static class ReviewStore {
+        // Archivio delle recensioni per colonne: ogni campo è un array primitivo, diviso in blocchi di dimensione fissa,
+        // e utenti, nomi degli hotel e città sono indici in una tabella di stringhe internate. Una recensione occupa
+        // 40 byte invece di un oggetto Review con le sue stringhe, un oggetto Ratings e un nodo di coda.
+        // Gli inserimenti sono serializzati; i blocchi non vengono mai riallocati e size viene pubblicato dopo aver scritto
+        // il record, quindi i lettori scorrono senza lock le recensioni di indice minore di size().
+        private static final int CHUNK_SHIFT = 16;
+        private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+        private static class Chunk {
+            final long[] time = new long[CHUNK_SIZE];
+            final int[] user = new int[CHUNK_SIZE];
+            final int[] hotel = new int[CHUNK_SIZE];
+            final int[] city = new int[CHUNK_SIZE];
+            final int[] globalScore = new int[CHUNK_SIZE];
+            final float[] cleaning = new float[CHUNK_SIZE];
+            final float[] position = new float[CHUNK_SIZE];
+            final float[] services = new float[CHUNK_SIZE];
+            final float[] quality = new float[CHUNK_SIZE];
+        }
 
+        // Tabella delle stringhe, modificata solo durante gli inserimenti
+        private final HashMap<String, Integer> stringIds = new HashMap<>();
+        private String[] strings = new String[1024];
+        private Chunk[] chunks = new Chunk[16];
+        private volatile int size;
+
+        public synchronized void add(Review review) {
+            int index = size;
+            int chunkIndex = index >>> CHUNK_SHIFT;
+            if (chunkIndex == chunks.length) {
+                chunks = Arrays.copyOf(chunks, chunks.length * 2);
+            }
+            if (chunks[chunkIndex] == null) {
+                chunks[chunkIndex] = new Chunk();
+            }
+            Chunk chunk = chunks[chunkIndex];
+            int offset = index & (CHUNK_SIZE - 1);
+            Ratings singleScores = review.getSingleScores();
+            chunk.time[offset] = review.getTime();
+            chunk.user[offset] = intern(review.getUserId());
+            chunk.hotel[offset] = intern(review.getHotelName());
+            chunk.city[offset] = intern(review.getCity());
+            chunk.globalScore[offset] = review.getGlobalScore();
+            chunk.cleaning[offset] = (float) singleScores.getCleaning();
+            chunk.position[offset] = (float) singleScores.getPosition();
+            chunk.services[offset] = (float) singleScores.getServices();
+            chunk.quality[offset] = (float) singleScores.getQuality();
+            // Pubblica il record ai lettori
+            size = index + 1;
+        }
 
-}  
-    private class Hotel implements Comparable<Hotel> {
-        private int id;
-        private String name;
-        private String description;
-        private String city;
-        private String phone;
-        private List<String> services;
-        private float rate;
-        private Ratings ratings;
-        private double rankingScore;
-        private int numberOfReviews; // Numero di recensioni ricevute
-        private Normalization normalization; // Oggetto che serve 
+        private int intern(String string) {
+            Integer id = stringIds.get(string);
+            if (id == null) {
+                id = stringIds.size();
+                if (id == strings.length) {
+                    strings = Arrays.copyOf(strings, strings.length * 2);
+                }
+                strings[id] = string;
+                stringIds.put(string, id);
+            }
+            return id;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public long getTime(int index) {
+            return chunk(index).time[index & (CHUNK_SIZE - 1)];
+        }
+
+        public String getUserId(int index) {
+            return strings[chunk(index).user[index & (CHUNK_SIZE - 1)]];
+        }
+
+        public String getHotelName(int index) {
+            return strings[chunk(index).hotel[index & (CHUNK_SIZE - 1)]];
+        }
+
+        public String getCity(int index) {
+            return strings[chunk(index).city[index & (CHUNK_SIZE - 1)]];
+        }
+
+        // Identificativo della coppia (hotel, città) della recensione
+        public long getPlaceId(int index) {
+            Chunk chunk = chunk(index);
+            int offset = index & (CHUNK_SIZE - 1);
+            return ((long) chunk.hotel[offset] << 32) | chunk.city[offset];
+        }
+
+        // Ricostruisce la recensione di indice indicato
+        public Review get(int index) {
+            Chunk chunk = chunk(index);
+            int offset = index & (CHUNK_SIZE - 1);
+            Ratings singleScores = new Ratings(chunk.cleaning[offset], chunk.position[offset], chunk.services[offset], chunk.quality[offset]);
+            return new Review(strings[chunk.user[offset]], chunk.time[offset], strings[chunk.hotel[offset]], strings[chunk.city[offset]], chunk.globalScore[offset], singleScores);
+        }
+
+        // Vista delle recensioni presenti in questo momento, ricostruite solo quando vengono lette
+        public List<Review> view() {
+            return new View(this, size);
+        }
+
+        // Classe con nome e non anonima: Gson serializza come null le istanze di classi anonime
+        private static class View extends AbstractList<Review> {
+            private final ReviewStore store;
+            private final int count;
+
+            View(ReviewStore store, int count) {
+                this.store = store;
+                this.count = count;
+            }
+
+            @Override
+            public Review get(int index) {
+                return store.get(Objects.checkIndex(index, count));
+            }
+
+            @Override
+            public int size() {
+                return count;
+            }
+        }
+
+        // La lettura di size (volatile) rende visibili blocchi e stringhe dei record già pubblicati
+        private Chunk chunk(int index) {
+            if (index >= size) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            return chunks[index >>> CHUNK_SHIFT];
+        }
+    }
+    private static class State {
+        private static final AtomicInteger lastAssignedId = new AtomicInteger(0);
+        // Dimensione massima accettata per un singolo frame.
+        public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+        // Numero massimo di risposte scritte con una singola gathering write.
+        public static final int MAX_GATHERED_REPLIES = 64;
+        // Oltre questo numero di richieste/risposte in sospeso si smette di leggere dal client.
+        public static final int MAX_PENDING_REPLIES = 1024;
+        // Buffer di lettura, mantiene i frame parziali tra una lettura e la successiva.
+        public ByteBuffer buffer;
+        // Risposte in attesa di essere scritte sul canale, nell'ordine delle richieste.
+        public final ArrayDeque<ByteBuffer> replies = new ArrayDeque<>();
+        // Richieste ricevute in attesa dell'executor, che ne esegue una sola alla volta per connessione.
+        public final ArrayDeque<Request> pendingRequests = new ArrayDeque<>();
+        public boolean requestInFlight;
+        // Il client ha inviato il messaggio di terminazione, si chiude dopo aver inviato le risposte in sospeso.
+        public boolean closeRequested;
+        // Il client ha negoziato il protocollo binario, usato solo dal thread del selettore per decodificare i frame.
+        public boolean binaryProtocol;
+        // Formato delle risposte negoziato dal client (true = JSON compatto), letto dai thread dell'executor.
+        public volatile boolean compactReplies = compactWireFormat;
+        // Mantengo identificativo del client.
+        public int id;
+        // Reactor che possiede il canale, a cui restituire le risposte calcolate dall'executor.
+        public final Reactor reactor;
+        
+        public State(int bufSize, Reactor reactor) {
+            this.buffer = bufferPool.acquire(bufSize);
+            this.id = getNextId(); // Assegna un nuovo ID all'istanza di State
+            this.reactor = reactor;
+        }
+
+        // Nessuna richiesta in esecuzione o in attesa e nessuna risposta da inviare
+        public boolean isIdle() {
+            return replies.isEmpty() && pendingRequests.isEmpty() && !requestInFlight;
+        }
+
+        // Metodo privato per ottenere il prossimo ID disponibile, atomico perché le connessioni sono create da più reactor
+        private static int getNextId() {
+            return lastAssignedId.incrementAndGet(); // Incrementa e restituisce l'ultimo ID assegnato
+        }
+    }
+    private static class BufferPool {
+        // Classi di dimensione: potenze di due da 2^MIN_SHIFT (512 byte) a 2^MAX_SHIFT (1 MB)
+        private static final int MIN_SHIFT = 9;
+        private static final int MAX_SHIFT = 20;
+
+        // Buffer liberi per ogni classe di dimensione
+        private final List<ConcurrentLinkedQueue<ByteBuffer>> freeBuffers;
+        private final AtomicInteger[] freeCounts;
+        // Numero massimo di buffer liberi conservati per classe, quelli in eccesso vengono lasciati al GC
+        private final int maxPerClass;
+
+        // Metriche del pool
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder oversized = new LongAdder();
+        private final LongAdder discarded = new LongAdder();
+
+        public BufferPool(int maxPerClass) {
+            int classes = MAX_SHIFT - MIN_SHIFT + 1;
+            this.freeBuffers = new ArrayList<>(classes);
+            this.freeCounts = new AtomicInteger[classes];
+            for (int i = 0; i < classes; i++) {
+                freeBuffers.add(new ConcurrentLinkedQueue<>());
+                freeCounts[i] = new AtomicInteger(0);
+            }
+            this.maxPerClass = maxPerClass;
+        }
+
+        // Restituisce un buffer diretto pulito con capacità almeno pari a size
+        public ByteBuffer acquire(int size) {
+            int sizeClass = sizeClassOf(size);
+            if (sizeClass < 0) {
+                // Troppo grande per essere messo in pool, viene allocato su misura
+                oversized.increment();
+                return ByteBuffer.allocateDirect(size);
+            }
+            ByteBuffer buffer = freeBuffers.get(sizeClass).poll();
+            if (buffer != null) {
+                freeCounts[sizeClass].decrementAndGet();
+                hits.increment();
+                buffer.clear();
+                return buffer;
+            }
+            misses.increment();
+            return ByteBuffer.allocateDirect(1 << (sizeClass + MIN_SHIFT));
+        }
+
+        // Rimette nel pool un buffer ottenuto con acquire(), gli altri buffer vengono ignorati
+        public void release(ByteBuffer buffer) {
+            if (buffer == null || !buffer.isDirect() || buffer.isReadOnly()) {
+                return;
+            }
+            int capacity = buffer.capacity();
+            int sizeClass = sizeClassOf(capacity);
+            if (sizeClass < 0 || capacity != 1 << (sizeClass + MIN_SHIFT)) {
+                return;
+            }
+            if (freeCounts[sizeClass].incrementAndGet() > maxPerClass) {
+                freeCounts[sizeClass].decrementAndGet();
+                discarded.increment();
+                return;
+            }
+            buffer.clear();
+            freeBuffers.get(sizeClass).add(buffer);
+        }
+
+        // Indice della più piccola classe che contiene size byte, -1 se supera la classe massima
+        private static int sizeClassOf(int size) {
+            int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1));
+            return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+        }
+
+        @Override
+        public String toString() {
+            return "BufferPool{" +
+                    "hits=" + hits.sum() +
+                    ", misses=" + misses.sum() +
+                    ", oversized=" + oversized.sum() +
+                    ", discarded=" + discarded.sum() +
+                    '}';
+        }
+    }
+    private static class Reactor implements Runnable {
+        // Selettore posseduto dal reactor, usato solo dal suo thread
+        private final Selector selector;
+        // Connessioni accettate dall'acceptor e in attesa di essere registrate sul selettore di questo reactor
+        private final ConcurrentLinkedQueue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+        // Risposte calcolate dall'executor e in attesa di essere consegnate ai rispettivi canali
+        private final ConcurrentLinkedQueue<Completion> completions = new ConcurrentLinkedQueue<>();
+        private final String name;
+        private Thread thread;
+
+        public Reactor(String name) throws IOException {
+            this.selector = Selector.open();
+            this.name = name;
+        }
+
+        public Selector getSelector() {
+            return selector;
+        }
+
+        public void start() {
+            thread = new Thread(this, name);
+            thread.start();
+        }
+
+        // Chiamato dal thread acceptor: accoda il canale e sveglia il selettore perché lo registri
+        public void assign(SocketChannel client) {
+            pendingChannels.add(client);
+            selector.wakeup();
+        }
+
+        // Chiamato dai thread dell'executor: accoda la risposta e sveglia il selettore perché la consegni
+        public void complete(SelectionKey key, ByteBuffer reply) {
+            completions.add(new Completion(key, reply));
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    selector.select();
+                    // La registrazione avviene nel thread del reactor, così ogni State appartiene ad un solo selettore
+                    registerPendingChannels();
+                    deliverCompletions();
+                    processSelectedKeys(selector);
+                }
+            } catch (ClosedSelectorException e) {
+                // Il selettore è stato chiuso durante la terminazione del server
+            } catch (IOException e) {
+                System.err.println("[SERVER] Errore nel reactor " + name + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        private void registerPendingChannels() throws IOException {
+            SocketChannel client;
+            while ((client = pendingChannels.poll()) != null) {
+                registerClient(client, this);
+            }
+        }
+
+        private void deliverCompletions() throws IOException {
+            Completion completion;
+            while ((completion = completions.poll()) != null) {
+                completeReply(completion.key, completion.reply);
+            }
+        }
+
+        public void shutdown() {
+            if (thread != null) {
+                thread.interrupt();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                System.err.println("[SERVER] Errore durante la chiusura del reactor " + name + ": " + e.getMessage());
+            }
+        }
+
+        // Risposta pronta per un canale gestito dal reactor
+        private static class Completion {
+            private final SelectionKey key;
+            private final ByteBuffer reply;
+
+            public Completion(SelectionKey key, ByteBuffer reply) {
+                this.key = key;
+                this.reply = reply;
+            }
+        }
+    }
+    private static class ServerTerminationHandler extends Thread {
+        Thread main;
+
+        public ServerTerminationHandler(Thread main){
+            this.main = main;
+        }
+        @Override
+        public void run() {
+            main.interrupt();
+            // Avvio la procedura di terminazione del server.
+            System.out.println("[SERVER] Avvio terminazione...");
+
+            // Chiudi l'executor delle richieste, le risposte ancora in calcolo non verranno consegnate.
+            if (requestExecutor != null) {
+                System.out.println("[SERVER] Chiusura executor delle richieste");
+                requestExecutor.shutdownNow();
+            }
+
+            // Il task periodico di fsync del log si ferma con lo scheduler: si esegue un ultimo fsync e le scritture
+            // in attesa o successive lo eseguono da sé, senza bloccare il salvataggio finale dei dati
+            if (writeAheadLog != null) {
+                writeAheadLog.stopPeriodicSync();
+            }
+
+            // Chiudi il pool scheduler di thread in modo corretto.
+            if (scheduler != null && !scheduler.isShutdown()) {
+                System.out.println("[SERVER] Chiusura pool scheduler");
+                scheduler.shutdown(); // Avvia l'arresto ordinato dei thread nel pool
+                try {
+                    if (!scheduler.awaitTermination(maxDelay, java.util.concurrent.TimeUnit.MILLISECONDS)) { // Attendi fino a un massimo di 60 secondi che tutti i thread terminino
+                        scheduler.shutdownNow(); // Se non terminano entro il timeout, interrompi forzatamente i thread
+                    }
+                } catch (InterruptedException e) {
+                    scheduler.shutdownNow(); // Se viene interrotta l'attesa, interrompi forzatamente i thread
+                }
+            }
+
+            // Chiudi il canale delle notifiche multicast
+            if (rankingPublisher != null) {
+                rankingPublisher.close();
+            }
+
+            try {
+                // Persisto i dati in formato JSON, solo se sono stati caricati completamente: una terminazione durante
+                // il caricamento non deve sovrascrivere i file con dati parziali
+                if (dataLoaded) {
+                    saveDataToJson(HOTELS_JSON_FILE, USERS_JSON_FILE,REVIEWS_JSON_FILE);
+                }
+            } catch (IOException e) {
+                System.err.println("[SERVER] Errore durante il salvataggio dei dati: " + e.getMessage());
+            }
+
+            // Chiudo il log delle scritture
+            if (writeAheadLog != null) {
+                writeAheadLog.close();
+            }
 
+            try {
+                // Chiudo le risorse del server
+                if (serverSocketChannel != null && serverSocketChannel.isOpen()) {
+                    serverSocketChannel.close();
+                    System.out.println("[SERVER] ServerSocketChannel chiuso.");
+                }
+                if (selector != null && selector.isOpen()) {
+                    selector.close();
+                    System.out.println("[SERVER] Selector chiuso.");
+                }
+                // Chiudo i selettori dei reactor worker
+                for (Reactor reactor : reactors) {
+                    reactor.shutdown();
+                }
+                if (reactors.length > 0) {
+                    System.out.println("[SERVER] Reactor worker chiusi.");
+                }
+            } 
+            catch (IOException e) {
+                System.err.println("[SERVER] Errore durante la chiusura delle risorse:"+ e.getMessage());
+            }
+
+            // Stampa le statistiche finali
+            new StatsReporter().run();
+
+            System.out.println("[SERVER] Terminato.");
+        }
+
+        private void saveDataToJson(String HOTELS_JSON_FILE, String USERS_JSON_FILE, String REVIEWS_JSON_FILE) throws IOException {
+            // Prima di salvare i dati, setto tutti gli utenti come disconnessi
+            setAllLoggedOutUsers();
+
+            // Eseguo l'aggiornamento dei dati nei file JSON
+            DataUpdater dataUpdater = new DataUpdater();
+            dataUpdater.run();
+        }
+
+        private static void setAllLoggedOutUsers() {
+            // Itero attraverso gli utenti registrati e li setto tutti come disconnessi
+            for (Map.Entry<String, User> entry : registeredUsers.entrySet()) {
+                entry.getValue().logout();
+            }
+        }
+    }
+    private static class StatsReporter implements Runnable {
 
-        // Override del metodo compareTo per definire l'ordinamento degli oggetti Hotel
         @Override
-        public int compareTo(Hotel other) {
-            // Confronto basato sul rankingScore (ordine decrescente)
-            int scoreComparison = Double.compare(other.rankingScore, this.rankingScore);
-        
-            if (scoreComparison != 0) {
-                return scoreComparison;
-            } else {
-                // Confronto per la lunghezza dei nomi in caso di score uguale
-                int lengthComparison = this.name.length() - other.name.length();
-                if (lengthComparison != 0) {
-                    return lengthComparison;
-                } else {
-                    // Se le stringhe hanno la stessa lunghezza, si esegue un confrono lessicografico
-                    return this.name.compareTo(other.name);
-                }
+        public void run() {
+            synchronized(printSyncLock){
+                System.out.println("[SERVER] Statistiche: " + bufferPool + ", " + responseCache + ", " + rankingPublisher + ", " + writeAheadLog);
+            }
+        }
+    }
+    private static class HotelRankingUpdater implements Runnable {
+        // Oltre questo numero di hotel da riposizionare conviene riordinare l'intera classifica
+        private static final int MAX_REPOSITIONS = 16;
+
+        // Città la cui classifica va ricalcolata, con gli hotel il cui punteggio è cambiato
+        private final ConcurrentHashMap<String, DirtyCity> dirtyCities = new ConcurrentHashMap<>();
+        // Indica se un ricalcolo è già pianificato: le modifiche che arrivano nel frattempo vengono raggruppate
+        private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+        private volatile ScheduledExecutorService scheduler;
+
+        public void start(ScheduledExecutorService scheduler) {
+            this.scheduler = scheduler;
+            if (!dirtyCities.isEmpty()) {
+                scheduleFlush();
             }
         }
-        
 
-        // Classe interna Normalization
-        private class Normalization {
-            private double originalQualityScore;
-            private double originalQuantityScore;
-            private double originalRelevanceScore;
-            private double normalizedQualityScore;
-            private double normalizedQuantityScore;
-            private double normalizedRelevanceScore;
+        // Segnala che il punteggio dell'hotel è cambiato; fullResort indica che sono cambiati anche gli altri hotel della città
+        public void markDirty(String city, Hotel hotel, boolean fullResort) {
+            dirtyCities.compute(city, (k, dirty) -> {
+                if (dirty == null) {
+                    dirty = new DirtyCity();
+                }
+                dirty.add(hotel, fullResort);
+                return dirty;
+            });
+            scheduleFlush();
+        }
 
-            public void setOriginalQualityScore(double qualityScore) {
-                this.originalQualityScore = qualityScore;
-            }
-            
-            public void setOriginalQuantityScore(double quantityScore) {
-                this.originalQuantityScore = quantityScore;
+        private void scheduleFlush() {
+            ScheduledExecutorService executor = scheduler;
+            if (executor != null && flushScheduled.compareAndSet(false, true)) {
+                try {
+                    executor.schedule(this, rankingDebounceDelay, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // Server in chiusura, la classifica non viene più aggiornata
+                }
             }
+        }
 
-            public void setOriginalRelevanceScore(double originalRelevanceScore){
-                this.originalRelevanceScore = originalRelevanceScore;
-            }
+        @Override
+        public void run() {
+            // Le modifiche che arrivano da qui in poi pianificano un nuovo ricalcolo
+            flushScheduled.set(false);
+            // Cambi del primo hotel rilevati in questo ricalcolo, inviati insieme alla fine
+            List<String[]> topChanges = new ArrayList<>();
+            // Iterazione per ogni città modificata
+            for (String city : dirtyCities.keySet()) {
+                DirtyCity dirty = dirtyCities.remove(city);
+                CityRanking hotels = hotelsByCity.get(city); // Ottiene la classifica della città corrente
+                if (dirty == null || hotels == null) {
+                    continue;
+                }
 
-            // Getters per i valori originali e normalizzati
-            public double getOriginalQualityScore() {
+                // Ottiene il primo hotel della classifica
+                Hotel firstHotel = hotels.top();
 
-                return originalQualityScore;
-            }
+                // Ricalcola la classifica (per intero o riposizionando i soli hotel modificati) e la pubblica in blocco
+                boolean changed = dirty.fullResort ? hotels.rerank() : hotels.reposition(dirty.moved);
+                if (firstHotel != null && changed) {
+                    // L'ordine degli hotel della città è cambiato
+                    responseCache.invalidateCity(city);
+                    Hotel potentialNewTopHotel = hotels.top(); // Ottiene il nuovo hotel primo classificato
 
-            public double getOriginalQuantityScore() {
-                return originalQuantityScore;
+                    // Verifica se c'è un nuovo hotel primo classificato e se è diverso dal precedente
+                    if (potentialNewTopHotel.getId() != firstHotel.getId()) {
+                        topChanges.add(new String[] {city, potentialNewTopHotel.getName()});
+                    }
+                }
             }
-
-            public double getOriginalRelevanceScore() {
-                return originalRelevanceScore;
+            if (!topChanges.isEmpty() && rankingPublisher != null) {
+                rankingPublisher.publish(topChanges);
             }
+        }
 
-            public double getNormalizedQualityScore() {
-                return normalizedQualityScore;
-            }
+        private static class DirtyCity {
+            private boolean fullResort;
+            private final Set<Hotel> moved = new HashSet<>();
 
-            public double getNormalizedQuantityScore() {
-                return normalizedQuantityScore;
+            // Chiamato solo dentro compute() sulla mappa delle città, quindi mai in concorrenza
+            private void add(Hotel hotel, boolean renormalized) {
+                if (fullResort) {
+                    return;
+                }
+                moved.add(hotel);
+                if (renormalized || moved.size() > MAX_REPOSITIONS) {
+                    fullResort = true;
+                    moved.clear();
+                }
             }
-
-            // Setters per i valori normalizzati
-            public void setNormalizedQualityScore(double normalizedQualityScore) {
-                this.normalizedQualityScore = normalizedQualityScore;
+        }
+    }
+    private static class MulticastPublisher {
+        // Formato dei datagrammi (UTF-8): una prima riga "#<numero di sequenza>" seguita da una riga "<città>\t<hotel>"
+        // per ogni città che ha cambiato primo hotel. Il numero di sequenza cresce di uno per datagramma, così il client
+        // può accorgersi dei datagrammi persi.
+        private final InetSocketAddress group;
+        private final int maxDatagramSize;
+        private DatagramChannel channel;
+        private long nextSequence = 1;
+
+        // Metriche delle notifiche
+        private long sent;
+        private long failed;
+
+        public MulticastPublisher(String address, int port, int maxDatagramSize) {
+            this.group = new InetSocketAddress(address, port);
+            this.maxDatagramSize = maxDatagramSize;
+            if (group.isUnresolved()) {
+                System.err.println("[SERVER] Indirizzo multicast non valido: " + address + ", notifiche disabilitate");
             }
+        }
 
-            public void setNormalizedQuantityScore(double normalizedQuantityScore) {
-                this.normalizedQuantityScore = normalizedQuantityScore;
+        // Invia i cambi del primo hotel, raggruppati nel minor numero di datagrammi che rientrano in maxDatagramSize
+        public synchronized void publish(List<String[]> topChanges) {
+            if (group.isUnresolved()) {
+                return;
             }
-
-            public void setNormalizedRelevanceScore(double normalizedRelevanceScore) {
-                this.normalizedRelevanceScore = normalizedRelevanceScore;
+            StringBuilder lines = new StringBuilder();
+            int linesSize = 0;
+            for (String[] change : topChanges) {
+                String line = "\n" + change[0] + "\t" + change[1];
+                int lineSize = line.getBytes(StandardCharsets.UTF_8).length;
+                // Spazio per l'intestazione con il numero di sequenza (al massimo "#" + 19 cifre)
+                if (linesSize > 0 && 20 + linesSize + lineSize > maxDatagramSize) {
+                    send(lines);
+                    lines.setLength(0);
+                    linesSize = 0;
+                }
+                lines.append(line);
+                linesSize += lineSize;
+            }
+            if (linesSize > 0) {
+                send(lines);
             }
+        }
 
-            @Override
-            public String toString() {
-                return "Normalization{" +
-                        "originalQualityScore=" + originalQualityScore +
-                        ", originalQuantityScore=" + originalQuantityScore +
-                        ", originalRelevanceScore=" + originalRelevanceScore +
-                        ", normalizedQualityScore=" + normalizedQualityScore +
-                        ", normalizedQuantityScore=" + normalizedQuantityScore +
-                        ", normalizedRelevanceScore=" + normalizedRelevanceScore +
-                        '}';
+        private void send(CharSequence lines) {
+            byte[] datagram = ("#" + nextSequence++ + lines).getBytes(StandardCharsets.UTF_8);
+            try {
+                if (channel == null) {
+                    channel = DatagramChannel.open(StandardProtocolFamily.INET);
+                }
+                channel.send(ByteBuffer.wrap(datagram, 0, Math.min(datagram.length, maxDatagramSize)), group);
+                sent++;
+            } catch (IOException e) {
+                // Una notifica persa non deve fermare il server: si chiude il canale e lo si riapre al prossimo invio
+                failed++;
+                System.err.println("[SERVER] Impossibile inviare la notifica multicast: " + e.getMessage());
+                close();
             }
+        }
 
+        public synchronized void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    System.err.println("[SERVER] Errore durante la chiusura del canale multicast: " + e.getMessage());
+                }
+                channel = null;
+            }
         }
 
-        // Metodi per impostare e recuperare i valori normalizzati
-        public void setOriginalQualityScore(double qualityScore) {
-            this.normalization.setOriginalQualityScore(qualityScore);
+        @Override
+        public synchronized String toString() {
+            return "MulticastPublisher{" +
+                    "sent=" + sent +
+                    ", failed=" + failed +
+                    ", nextSequence=" + nextSequence +
+                    '}';
         }
-            
-        public void setOriginalQuantityScore(double quantityScore) {
-            this.normalization.setOriginalQuantityScore(quantityScore);
+    }
+    private static class WriteAheadLog {
+        // Tipi di record
+        public static final byte USER_REGISTERED = 1;
+        public static final byte REVIEW_INSERTED = 2;
+
+        // Un segmento è una sequenza di record [lunghezza (int)][tipo (byte)][JSON UTF-8][CRC32 di tipo e JSON (int)].
+        // I segmenti sono i file <prefisso>.<numero>, ad ogni avvio e ad ogni snapshot se ne apre uno nuovo.
+        private final Path prefix;
+        private final boolean syncEveryWrite;
+        private FileChannel channel;
+        private long segment;
+
+        // Byte scritti e byte resi durevoli (fsync), contati dall'apertura del log
+        private long appended;
+        private long durable;
+        // false quando lo scheduler non esegue più sync() periodicamente
+        private boolean periodicSync = true;
+
+        // Metriche del log
+        private long records;
+        private long syncs;
+
+        private WriteAheadLog(Path prefix, boolean syncEveryWrite, long segment) throws IOException {
+            this.prefix = prefix;
+            this.syncEveryWrite = syncEveryWrite;
+            this.segment = segment;
+            this.channel = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
         }
 
-        public void setOriginalRelevanceScore(double relevanceScore){
-            this.normalization.setOriginalRelevanceScore(relevanceScore);
+        // Apre il log su un nuovo segmento, successivo a quelli già presenti
+        public static WriteAheadLog open(String prefix, boolean syncEveryWrite) throws IOException {
+            Path path = Paths.get(prefix);
+            List<Long> existing = segments(path);
+            long next = existing.isEmpty() ? 1 : existing.get(existing.size() - 1) + 1;
+            return new WriteAheadLog(path, syncEveryWrite, next);
         }
 
-        public double getOriginalQualityScore() {
-            return this.normalization.getOriginalQualityScore();
+        // Legge in ordine tutti i record dei segmenti presenti; un record incompleto o corrotto (scrittura interrotta
+        // da un crash) termina la lettura del suo segmento
+        public static void replay(String prefix, BiConsumer<Byte, String> handler) throws IOException {
+            Path path = Paths.get(prefix);
+            for (long segment : segments(path)) {
+                Path segmentPath = segmentPath(path, segment);
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segmentPath)))) {
+                    while (true) {
+                        int length;
+                        try {
+                            length = in.readInt();
+                        } catch (EOFException e) {
+                            break;
+                        }
+                        if (length <= 0 || length > State.MAX_FRAME_LENGTH) {
+                            System.err.println("[SERVER] Record non valido nel log " + segmentPath + ", lettura del segmento interrotta");
+                            break;
+                        }
+                        byte[] record = new byte[length];
+                        int crc;
+                        try {
+                            in.readFully(record);
+                            crc = in.readInt();
+                        } catch (EOFException e) {
+                            System.err.println("[SERVER] Record incompleto in fondo al log " + segmentPath + ", ignorato");
+                            break;
+                        }
+                        CRC32 checksum = new CRC32();
+                        checksum.update(record);
+                        if ((int) checksum.getValue() != crc) {
+                            System.err.println("[SERVER] Record corrotto nel log " + segmentPath + ", lettura del segmento interrotta");
+                            break;
+                        }
+                        handler.accept(record[0], new String(record, 1, length - 1, StandardCharsets.UTF_8));
+                    }
+                }
+            }
         }
 
-        public double getOriginalQuantityScore() {
-            return this.normalization.getOriginalQuantityScore();
+        // Aggiunge un record e attende che sia reso durevole dal prossimo fsync
+        public void appendAndAwait(byte type, String payload) {
+            awaitDurable(append(type, payload));
         }
 
-        public double getOriginalRelevanceScore() {
-            return this.normalization.getOriginalRelevanceScore();
-        }
+        // Aggiunge un record senza attendere, restituisce la posizione da passare ad awaitDurable (-1 se non c'è nulla da attendere)
+        public long append(byte type, String payload) {
+            byte[] json = payload.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer record = ByteBuffer.allocate(4 + 1 + json.length + 4);
+            record.putInt(1 + json.length).put(type).put(json);
+            CRC32 checksum = new CRC32();
+            checksum.update(record.array(), 4, 1 + json.length);
+            record.putInt((int) checksum.getValue()).flip();
 
-        public double getNormalizedQualityScore() {
-            return this.normalization.getNormalizedQualityScore();
+            synchronized (this) {
+                try {
+                    while (record.hasRemaining()) {
+                        channel.write(record);
+                    }
+                    if (syncEveryWrite) {
+                        channel.force(false);
+                        syncs++;
+                    }
+                } catch (IOException e) {
+                    // La scrittura resta in memoria e finirà nel prossimo snapshot, ma non è durevole fino ad allora
+                    System.err.println("[SERVER] Impossibile scrivere sul log delle scritture: " + e.getMessage());
+                    return -1;
+                }
+                appended += record.limit();
+                records++;
+                if (syncEveryWrite) {
+                    durable = appended;
+                }
+                return appended;
+            }
         }
 
-        public double getNormalizedQuantityScore() {
-            return this.normalization.getNormalizedQuantityScore();
+        // Attende che il log sia durevole fino alla posizione indicata, più record possono essere attesi con un unico fsync
+        public void awaitDurable(long position) {
+            synchronized (this) {
+                while (durable < position && channel != null && periodicSync) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // Server in chiusura: il record è scritto, l'fsync finale avverrà alla chiusura del log
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (durable >= position || channel == null) {
+                    return;
+                }
+            }
+            // Lo scheduler non esegue più gli fsync periodici, chi attende rende durevole il log da sé
+            sync();
         }
 
-        public void setNormalizedQualityScore(double normalizedQualityScore) {
-            this.normalization.setNormalizedQualityScore(normalizedQualityScore);
+        // Chiamato alla chiusura del server prima di fermare lo scheduler: esegue un ultimo fsync e da qui in poi
+        // le scritture in attesa non dipendono più dal task periodico
+        public void stopPeriodicSync() {
+            synchronized (this) {
+                periodicSync = false;
+                notifyAll();
+            }
+            sync();
         }
 
-        public void setNormalizedQuantityScore(double normalizedQuantityScore) {
-            this.normalization.setNormalizedQuantityScore(normalizedQuantityScore);
+        // Rende durevoli con un unico fsync tutti i record scritti finora, eseguito periodicamente dallo scheduler
+        public void sync() {
+            FileChannel target;
+            long position;
+            synchronized (this) {
+                if (durable == appended || channel == null) {
+                    return;
+                }
+                target = channel;
+                position = appended;
+            }
+            try {
+                target.force(false);
+            } catch (IOException e) {
+                // Il segmento potrebbe essere stato chiuso da una rotazione, che ha già eseguito il proprio fsync
+                if (target.isOpen()) {
+                    System.err.println("[SERVER] Impossibile eseguire fsync del log delle scritture: " + e.getMessage());
+                    return;
+                }
+            }
+            synchronized (this) {
+                durable = Math.max(durable, position);
+                syncs++;
+                notifyAll();
+            }
         }
 
-        public void setNormalizedRelevanceScore(double normalizedRelevanceScore) {
-            this.normalization.setNormalizedRelevanceScore(normalizedRelevanceScore);
+        // Chiude il segmento corrente e ne apre uno nuovo, restituisce il numero del nuovo segmento
+        public synchronized long rotate() throws IOException {
+            channel.force(false);
+            durable = appended;
+            notifyAll();
+            channel.close();
+            segment++;
+            channel = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            return segment;
         }
 
-
-        public int getId() {
-            return id;
+        public synchronized long currentSegment() {
+            return segment;
         }
 
-        public String getName() {
-            return name;
+        // Elimina i segmenti precedenti a quello indicato, il cui contenuto è già compreso in uno snapshot
+        public void deleteSegmentsBefore(long segment) {
+            try {
+                for (long old : segments(prefix)) {
+                    if (old < segment) {
+                        Files.deleteIfExists(segmentPath(old));
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("[SERVER] Impossibile eliminare i segmenti compattati del log: " + e.getMessage());
+            }
         }
 
-        public String getCity() {
-            return city;
+        public synchronized void close() {
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.force(false);
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("[SERVER] Errore durante la chiusura del log delle scritture: " + e.getMessage());
+            }
+            channel = null;
+            durable = appended;
+            notifyAll();
         }
 
-        public float getRate() {
-            return rate;
+        private Path segmentPath(long segment) {
+            return segmentPath(prefix, segment);
         }
 
-        public void setRate(float rate) {
-            this.rate = rate;
+        private static Path segmentPath(Path prefix, long segment) {
+            return prefix.resolveSibling(prefix.getFileName() + "." + segment);
         }
 
-        public Ratings getRatings() {
-            return ratings;
+        // Numeri dei segmenti presenti su disco, in ordine crescente
+        private static List<Long> segments(Path prefix) throws IOException {
+            List<Long> segments = new ArrayList<>();
+            Path directory = prefix.toAbsolutePath().getParent();
+            String name = prefix.getFileName() + ".";
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, name + "*")) {
+                for (Path file : files) {
+                    try {
+                        segments.add(Long.parseLong(file.getFileName().toString().substring(name.length())));
+                    } catch (NumberFormatException e) {
+                        // File non appartenente al log
+                    }
+                }
+            }
+            Collections.sort(segments);
+            return segments;
         }
 
-        public void setRatings(Ratings ratings) {
-            this.ratings = ratings;
+        @Override
+        public synchronized String toString() {
+            return "WriteAheadLog{" +
+                    "segment=" + segment +
+                    ", records=" + records +
+                    ", bytes=" + appended +
+                    ", syncs=" + syncs +
+                    '}';
         }
+    }
+    private static class DataUpdater implements Runnable {
+        // Recensioni estratte da pendingReviews ma non ancora confermate da uno snapshot, ritentate al ciclo successivo
+        // (il DataUpdater viene eseguito da un solo thread alla volta)
+        private static final ArrayList<Review> unsavedReviews = new ArrayList<>();
+        // Chiusura dell'array JSON scritta dopo gli elementi accodati
+        private static final String JSON_ARRAY_CLOSING = "\n]";
+        // Tabella delle stringhe dello snapshot binario confermato e dimensione del file a cui corrisponde (-1 = da rileggere)
+        private static Map<String, Integer> binaryStrings = new HashMap<>();
+        private static long binaryStringsSize = -1;
 
-        public void setRankingScore(double rankingScore) {
-            this.rankingScore = rankingScore;
+        @Override
+        public void run() {
+            long startTime = System.nanoTime();
+
+            // Si cattura una vista coerente dei dati: le scritture (registrazioni e recensioni) vengono sospese solo
+            // per il tempo della copia, la serializzazione e la scrittura su disco avvengono dopo aver rilasciato il lock.
+            // Vengono copiati solo i file modificati dall'ultimo snapshot.
+            long activeSegment = -1;
+            JsonArray hotelsSnapshot = null;
+            ArrayList<User> usersSnapshot = null;
+            List<Review> reviewsSnapshot = null;
+            boolean appendReviews;
+            snapshotLock.writeLock().lock();
+            try {
+                // Senza uno snapshot precedente confermato dal manifest i file vengono riscritti per intero
+                boolean fullSnapshot = lastSnapshot == null;
+                boolean hotelsChanged = hotelsDirty.getAndSet(false) || fullSnapshot;
+                boolean usersChanged = usersDirty.getAndSet(false) || fullSnapshot;
+                for (Review review; (review = pendingReviews.poll()) != null; ) {
+                    unsavedReviews.add(review);
+                }
+                // Le recensioni non vengono mai modificate: se il file corrente è quello dell'ultimo snapshot basta
+                // accodargli sul posto quelle nuove, altrimenti viene riscritto per intero
+                appendReviews = !fullSnapshot && isAppendable(REVIEWS_JSON_FILE)
+                        && (!binarySnapshotEnabled || isAppendable(REVIEWS_BINARY_FILE));
+                boolean reviewsChanged = !unsavedReviews.isEmpty() || !appendReviews;
+                if (!hotelsChanged && !usersChanged && !reviewsChanged) {
+                    // Nessuna scrittura dall'ultimo snapshot: i segmenti chiusi (ad esempio quelli vuoti lasciati dai
+                    // riavvii) contengono solo record già salvati
+                    if (writeAheadLog != null) {
+                        writeAheadLog.deleteSegmentsBefore(writeAheadLog.currentSegment());
+                    }
+                    return;
+                }
+
+                // Chiude il segmento corrente del log: i record dei segmenti chiusi sono tutti compresi nella vista
+                // catturata qui, quelli successivi finiscono nel nuovo segmento
+                if (writeAheadLog != null) {
+                    try {
+                        activeSegment = writeAheadLog.rotate();
+                    } catch (IOException e) {
+                        System.err.println("[SERVER] Impossibile ruotare il log delle scritture: " + e.getMessage());
+                    }
+                }
+                if (hotelsChanged) {
+                    hotelsSnapshot = captureHotels();
+                }
+                if (usersChanged) {
+                    usersSnapshot = captureUsers();
+                }
+                if (reviewsChanged) {
+                    reviewsSnapshot = appendReviews ? new ArrayList<>(unsavedReviews) : captureReviews();
+                }
+            } finally {
+                snapshotLock.writeLock().unlock();
+            }
+
+            // Scrittura dello snapshot, i file correnti vengono sostituiti solo se tutti i file modificati sono stati scritti
+            SnapshotManifest manifest = writeSnapshot(hotelsSnapshot, usersSnapshot, reviewsSnapshot, appendReviews);
+            if (manifest == null) {
+                // Si mantengono lo snapshot precedente e i segmenti del log, che restano necessari per la riesecuzione;
+                // i dati catturati vengono segnati di nuovo come modificati
+                if (hotelsSnapshot != null) {
+                    hotelsDirty.set(true);
+                }
+                if (usersSnapshot != null) {
+                    usersDirty.set(true);
+                }
+                return;
+            }
+            lastSnapshot = manifest;
+            unsavedReviews.clear();
+
+            // Compattazione: i segmenti chiusi sono ora contenuti nello snapshot
+            if (activeSegment >= 0) {
+                writeAheadLog.deleteSegmentsBefore(activeSegment);
+            }
+
+            // Stampa esecuzione dell'aggiornamento, con i byte scritti e il tempo impiegato
+            long elapsedMillis = (System.nanoTime() - startTime) / 1_000_000;
+            synchronized(printSyncLock){
+                System.out.println("[SERVER] Eseguito persistenza dei dati su Json (snapshot " + manifest.getGeneration() + "): "
+                        + manifest.getBytesWritten() + " byte scritti (snapshot di " + manifest.getTotalSize() + " byte) in " + elapsedMillis + " ms"
+                        + (hotelsSnapshot == null ? ", hotel invariati" : "")
+                        + (usersSnapshot == null ? ", utenti invariati" : "")
+                        + (reviewsSnapshot == null ? ", recensioni invariate"
+                            : appendReviews ? ", " + reviewsSnapshot.size() + " nuove recensioni accodate" : ""));
+            }
         }
 
-        public int getNumberOfReviews() {
-            return numberOfReviews;
+        // Copia gli hotel, con i totali correnti riportati nei campi serializzati
+        private static JsonArray captureHotels() {
+            JsonArray hotelsList = new JsonArray();
+            for (Map.Entry<String, CityRanking> entry : hotelsByCity.entrySet()) {
+                for (Hotel hotel : entry.getValue()) {
+                    hotel.publishScores();
+                    hotelsList.add(diskGson.toJsonTree(hotel));
+                }
+            }
+            return hotelsList;
         }
 
-        public void setNumberOfReviews(int numberOfReviews) {
-            this.numberOfReviews = numberOfReviews;
+        // Copia gli utenti registrati, i cui contatori possono cambiare dopo il rilascio del lock
+        private static ArrayList<User> captureUsers() {
+            ArrayList<User> userList = new ArrayList<>(registeredUsers.size());
+            for (User user : registeredUsers.values()) {
+                userList.add(user.copy());
+            }
+            return userList;
         }
 
-        @Override
-        public String toString() {
-            return "Hotel{" +
-                    "Identificativo:" + id + "  " +
-                    ", Nome hotel:" + name + "  " +
-                    ", description:" + description + "  " +
-                    ", city:" + city + "  " +
-                    ", phone:" + phone + "  " +
-                    ", services:" + services + "  " +
-                    ", rate:" + rate + "  " +
-                    ", ratings:" + (ratings != null ? ratings.toString() : "null") + "  " +
-                    ", rankingScore:" + rankingScore + "  " +
-                    ", numberOfReviews:" + numberOfReviews + "  " +
-                    ", normalization:" + (normalization != null ? normalization.toString() : "null") + "  " +
-                    '}';
+        // Le recensioni non vengono mai modificate, basta fissare quante sono: la vista le materializza durante la scrittura
+        private static List<Review> captureReviews() {
+            return reviews.view();
         }
-    }
-    private static class Review {
 
-        private String userId;
-        private long time;
-        private String hotelName;
-        private String city;
-        private int globalScore;
-        private Ratings singleScores;
+        // Un file può ricevere recensioni in coda se è ancora quello dell'ultimo snapshot e il manifest ne registra
+        // la posizione di accodamento
+        private static boolean isAppendable(String file) {
+            return lastSnapshot.matches(file) && lastSnapshot.getAppendOffset(file) >= 0;
+        }
 
-        public Review(String userId, long time, String hotelName, String city, int globalScore, Ratings singleScores) {
-            this.userId = userId;
-            this.time = time;
-            this.hotelName = hotelName;
-            this.city = city;
-            this.globalScore = globalScore;
-            this.singleScores = singleScores;
+        // Scrive lo snapshot della generazione successiva: i file temporanei di quelli modificati (null = invariato)
+        // oppure le recensioni nuove accodate sul posto, poi il manifest (punto di commit), infine la sostituzione
+        // atomica dei file temporanei. Un crash prima del manifest lascia lo snapshot precedente (i byte accodati
+        // vengono eliminati all'avvio), un crash dopo viene completato all'avvio da recoverSnapshot().
+        private static SnapshotManifest writeSnapshot(JsonArray hotelsSnapshot, ArrayList<User> usersSnapshot, List<Review> reviewsSnapshot, boolean appendReviews) {
+            long generation = lastSnapshot == null ? 1 : lastSnapshot.getGeneration() + 1;
+            String[] files = snapshotFiles();
+            Object[] contents = {hotelsSnapshot, usersSnapshot, reviewsSnapshot, reviewsSnapshot};
+            SnapshotManifest manifest = new SnapshotManifest(generation);
+            long stringsSize = -1;
+            for (int i = 0; i < files.length; i++) {
+                try {
+                    if (contents[i] == null) {
+                        // File invariato: resta quello dello snapshot precedente
+                        manifest.keepFile(files[i], lastSnapshot);
+                    } else if (files[i].equals(REVIEWS_BINARY_FILE)) {
+                        // La tabella delle stringhe in memoria viene estesa durante la scrittura: torna valida solo al commit
+                        boolean stringsValid = appendReviews && binaryStringsSize == lastSnapshot.getFiles().get(files[i]);
+                        binaryStringsSize = -1;
+                        if (appendReviews) {
+                            long committedSize = lastSnapshot.getFiles().get(files[i]);
+                            if (!stringsValid) {
+                                binaryStrings = ReviewSnapshotFile.readStrings(Paths.get(files[i]), committedSize);
+                            }
+                            stringsSize = ReviewSnapshotFile.append(Paths.get(files[i]), committedSize, reviewsSnapshot, binaryStrings);
+                        } else {
+                            stringsSize = ReviewSnapshotFile.write(tempPath(files[i], generation), reviewsSnapshot, binaryStrings);
+                        }
+                        manifest.addFile(files[i], stringsSize, appendReviews ? stringsSize - lastSnapshot.getFiles().get(files[i]) : stringsSize);
+                        manifest.setAppendOffset(files[i], stringsSize);
+                    } else if (contents[i] == reviewsSnapshot && appendReviews) {
+                        long appendOffset = lastSnapshot.getAppendOffset(files[i]);
+                        long size = appendJsonFile(files[i], appendOffset, reviewsSnapshot);
+                        manifest.addFile(files[i], size, size - appendOffset);
+                        manifest.setAppendOffset(files[i], size - JSON_ARRAY_CLOSING.length());
+                    } else {
+                        long size = writeTempFile(files[i], generation, contents[i]);
+                        manifest.addFile(files[i], size, size);
+                        if (contents[i] == reviewsSnapshot) {
+                            manifest.setAppendOffset(files[i], findAppendOffset(tempPath(files[i], generation)));
+                        }
+                    }
+                } catch (IOException | JsonIOException e) {
+                    System.err.println("[SERVER] Errore durante la scrittura dello snapshot di " + files[i] + ": " + e.getMessage());
+                    abortSnapshot(files, generation);
+                    return null;
+                }
+            }
+            try {
+                Path manifestPath = Paths.get(SNAPSHOT_MANIFEST_FILE);
+                writeTempFile(SNAPSHOT_MANIFEST_FILE, generation, manifest);
+                moveAtomically(tempPath(SNAPSHOT_MANIFEST_FILE, generation), manifestPath);
+                syncDirectory(manifestPath);
+            } catch (IOException | JsonIOException e) {
+                System.err.println("[SERVER] Errore durante la scrittura del manifest dello snapshot: " + e.getMessage());
+                abortSnapshot(files, generation);
+                return null;
+            }
+            if (stringsSize >= 0) {
+                binaryStringsSize = stringsSize;
+            }
+            try {
+                installSnapshot(manifest);
+            } catch (IOException e) {
+                // Il manifest è già stato scritto, la sostituzione verrà completata al prossimo avvio
+                System.err.println("[SERVER] Errore durante la sostituzione dei file dello snapshot: " + e.getMessage());
+                return null;
+            }
+            return manifest;
         }
 
-        public String getUserId() {
-            return userId;
+        // Scrive il contenuto in un file temporaneo accanto al file di destinazione e ne forza la scrittura su disco
+        private static long writeTempFile(String fileName, long generation, Object content) throws IOException {
+            Path temp = tempPath(fileName, generation);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                Writer writer = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8));
+                diskGson.toJson(content, writer);
+                writer.flush();
+                channel.force(true);
+                return channel.size();
+            }
         }
 
-        public long getTime() {
-            return time;
+        // Accoda sul posto gli elementi nuovi all'array JSON del file: la chiusura dell'array viene sovrascritta a partire
+        // dalla posizione di accodamento confermata e vengono scritti solo gli elementi nuovi, nello stesso formato di
+        // quelli già presenti. Restituisce la nuova dimensione del file
+        private static long appendJsonFile(String fileName, long appendOffset, List<?> newElements) throws IOException {
+            try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // Il carattere prima della posizione di accodamento è '[' se l'array è vuoto, '}' altrimenti
+                ByteBuffer previous = ByteBuffer.allocate(1);
+                if (appendOffset < 1 || channel.read(previous, appendOffset - 1) != 1) {
+                    throw new IOException("posizione di accodamento non valida");
+                }
+
+                // "[\n  {...},\n  {...}\n]" senza parentesi: stessa indentazione degli elementi già presenti
+                String elements = diskGson.toJson(newElements);
+                String tail = (previous.get(0) == '[' ? "" : ",") + elements.substring(1, elements.length() - 2) + JSON_ARRAY_CLOSING;
+                ByteBuffer tailBuffer = ByteBuffer.wrap(tail.getBytes(StandardCharsets.UTF_8));
+                while (tailBuffer.hasRemaining()) {
+                    channel.write(tailBuffer, appendOffset + tailBuffer.position());
+                }
+                channel.truncate(appendOffset + tailBuffer.limit());
+                channel.force(true);
+                return channel.size();
+            }
         }
 
-        public String getHotelName() {
-            return hotelName;
+        // Cerca all'indietro la fine dell'ultimo elemento dell'array JSON del file ('[' se l'array è vuoto):
+        // da lì in poi ci sono solo spazi e la ']' finale
+        private static long findAppendOffset(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long end = channel.size();
+                ByteBuffer oneByte = ByteBuffer.allocate(1);
+                boolean closingFound = false;
+                byte last = 0;
+                while (end > 0) {
+                    oneByte.clear();
+                    channel.read(oneByte, --end);
+                    last = oneByte.get(0);
+                    if (Character.isWhitespace(last)) {
+                        continue;
+                    }
+                    if (closingFound) {
+                        break;
+                    }
+                    if (last != ']') {
+                        throw new IOException("il file non termina con un array JSON");
+                    }
+                    closingFound = true;
+                }
+                if (!closingFound || (last != '[' && last != '}')) {
+                    throw new IOException("il file non contiene un array JSON");
+                }
+                return end + 1;
+            }
         }
 
-        public String getCity() {
-            return city;
+        // Annulla uno snapshot non confermato: elimina i file temporanei e i byte accodati sul posto
+        private static void abortSnapshot(String[] files, long generation) {
+            deleteTempFiles(files, generation);
+            if (lastSnapshot != null) {
+                try {
+                    restoreAppendedFiles(lastSnapshot);
+                } catch (IOException e) {
+                    // Il ripristino viene ritentato all'avvio
+                    System.err.println("[SERVER] Impossibile ripristinare i file dello snapshot " + lastSnapshot.getGeneration() + ": " + e.getMessage());
+                }
+            }
         }
 
-        public int getGlobalScore() {
-            return globalScore;
+        private static void deleteTempFiles(String[] files, long generation) {
+            for (String file : files) {
+                try {
+                    Files.deleteIfExists(tempPath(file, generation));
+                } catch (IOException e) {
+                    System.err.println("[SERVER] Impossibile eliminare il file temporaneo di " + file + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+    private static class ReviewSnapshotFile {
+        // Snapshot binario delle recensioni: intestazione [magic (int)][riservato (int)] seguita da blocchi, uno per ogni
+        // snapshot che ha aggiunto recensioni. Un blocco è [numero di record (int)][numero di stringhe nuove (int)], le
+        // stringhe nuove [lunghezza (short)][UTF-8] e i record a lunghezza fissa [istante (long)][utente, hotel, città
+        // (indici int nella tabella delle stringhe di tutti i blocchi)][voto globale (int)][pulizia, posizione, servizi,
+        // qualità (float)]. Il file cresce solo in coda: lo snapshot successivo accoda un blocco con le sole recensioni
+        // nuove e un blocco non confermato dal manifest si elimina troncando il file alla lunghezza confermata.
+        private static final int MAGIC = 0x48525632; // "HRV2"
+        private static final int HEADER_SIZE = 8;
+        private static final int BLOCK_HEADER_SIZE = 8;
+        private static final int RECORD_SIZE = 40;
+        private static final int BUFFER_SIZE = 128 * 1024;
+
+        // Scrive tutte le recensioni in un unico blocco nel file temporaneo indicato, restituisce la dimensione del file.
+        // strings viene riempita con la tabella delle stringhe del file
+        public static long write(Path temp, List<Review> reviews, Map<String, Integer> strings) throws IOException {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                strings.clear();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(0).flip();
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                writeBlock(channel, strings, reviews);
+                channel.force(true);
+                return channel.size();
+            }
         }
 
-        public Ratings getSingleScores() {
-            return singleScores;
+        // Accoda sul posto un blocco con le recensioni nuove a partire dalla lunghezza confermata, restituisce la nuova
+        // dimensione del file. strings è la tabella delle stringhe del file confermato e viene estesa con quelle nuove
+        public static long append(Path file, long committedLength, List<Review> newReviews, Map<String, Integer> strings) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(committedLength);
+                channel.position(committedLength);
+                writeBlock(channel, strings, newReviews);
+                channel.force(true);
+                return channel.size();
+            }
         }
 
-        @Override
-        public String toString() {
-            return "Review{" +
-                    "userId='" + userId + '\'' +
-                    ", time=" + time +
-                    ", hotelName='" + hotelName + '\'' +
-                    ", city='" + city + '\'' +
-                    ", globalScore=" + globalScore +
-                    ", singleScores=" + singleScores +
-                    '}';
+        // Restituisce true se il file è nel formato a blocchi e può ricevere blocchi in coda
+        public static boolean isAppendable(Path file) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                while (header.hasRemaining() && channel.read(header) >= 0) {
+                    // Legge l'intera intestazione
+                }
+                return !header.hasRemaining() && header.getInt(0) == MAGIC;
+            } catch (IOException e) {
+                return false;
+            }
         }
-    }
-    private static class State {
-        private static int lastAssignedId = 0;
-        // Numero totale di byte letti.
-        public int count;
-        // Dimensione del messaggio da ricevere.
-        public int length;
-        // Buffer per memorizzare il messaggio e la sua lunghezza.
-        public ByteBuffer buffer;
-        // Mantengo identificativo del client.
-        public int id;
-        
-        public State(int bufSize) {
-            this.count = 0;
-            this.length = 0;
-            this.buffer = ByteBuffer.allocate(bufSize);
-            this.id = getNextId(); // Assegna un nuovo ID all'istanza di State
+
+        // Legge la tabella delle stringhe dei blocchi entro la lunghezza confermata, senza decodificare i record
+        public static Map<String, Integer> readStrings(Path file, long committedLength) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                MappedByteBuffer map = map(channel);
+                if (committedLength > map.limit()) {
+                    throw new IOException("snapshot binario più corto della lunghezza confermata");
+                }
+                map.limit((int) committedLength);
+                Map<String, Integer> strings = new HashMap<>();
+                List<Integer> offsets = new ArrayList<>();
+                scan(map, offsets, new ArrayList<>());
+                for (int offset : offsets) {
+                    strings.put(decodeString(map, offset), strings.size());
+                }
+                return strings;
+            }
         }
 
-        // Metodo privato sincronizzato per ottenere il prossimo ID disponibile
-        private synchronized int getNextId() {
-            return ++lastAssignedId; // Incrementa e restituisce l'ultimo ID assegnato
+        // Legge le recensioni direttamente dal file mappato in memoria, senza parsing, e le passa al consumer: ogni stringa
+        // viene decodificata solo al primo record che la usa e poi condivisa dagli altri. Il file viene verificato per intero
+        // prima di passare la prima recensione, così un file danneggiato non lascia caricamenti parziali.
+        public static int load(Path file, Consumer<Review> consumer) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                MappedByteBuffer map = map(channel);
+                List<Integer> stringOffsets = new ArrayList<>();
+                List<int[]> blocks = new ArrayList<>();
+                scan(map, stringOffsets, blocks);
+                int[] offsets = new int[stringOffsets.size()];
+                for (int i = 0; i < offsets.length; i++) {
+                    offsets[i] = stringOffsets.get(i);
+                }
+                String[] strings = new String[offsets.length];
+                int count = 0;
+                for (int[] block : blocks) {
+                    for (int i = 0, base = block[0]; i < block[1]; i++, base += RECORD_SIZE) {
+                        Ratings singleScores = new Ratings(map.getFloat(base + 24), map.getFloat(base + 28), map.getFloat(base + 32), map.getFloat(base + 36));
+                        consumer.accept(new Review(string(map, offsets, strings, map.getInt(base + 8)), map.getLong(base),
+                                string(map, offsets, strings, map.getInt(base + 12)), string(map, offsets, strings, map.getInt(base + 16)),
+                                map.getInt(base + 20), singleScores));
+                    }
+                    count += block[1];
+                }
+                return count;
+            }
         }
-    }
-    private static class ServerTerminationHandler extends Thread {
-        Thread main;
 
-        public ServerTerminationHandler(Thread main){
-            this.main = main;
+        private static MappedByteBuffer map(FileChannel channel) throws IOException {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("file troppo grande per essere mappato");
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
         }
-        @Override
-        public void run() {
-            main.interrupt();
-            // Avvio la procedura di terminazione del server.
-            System.out.println("[SERVER] Avvio terminazione...");
 
-            // Chiudi il pool scheduler di thread in modo corretto.
-            if (scheduler != null && !scheduler.isShutdown()) {
-                System.out.println("[SERVER] Chiusura pool scheduler");
-                scheduler.shutdown(); // Avvia l'arresto ordinato dei thread nel pool
-                try {
-                    if (!scheduler.awaitTermination(maxDelay, java.util.concurrent.TimeUnit.MILLISECONDS)) { // Attendi fino a un massimo di 60 secondi che tutti i thread terminino
-                        scheduler.shutdownNow(); // Se non terminano entro il timeout, interrompi forzatamente i thread
+        // Verifica l'intestazione e tutti i blocchi: raccoglie le posizioni delle stringhe e, per ogni blocco,
+        // [posizione del primo record, numero di record]
+        private static void scan(MappedByteBuffer map, List<Integer> stringOffsets, List<int[]> blocks) throws IOException {
+            if (map.limit() < HEADER_SIZE || map.getInt(0) != MAGIC) {
+                throw new IOException("formato dello snapshot binario non riconosciuto");
+            }
+            int position = HEADER_SIZE;
+            while (position < map.limit()) {
+                if (position + BLOCK_HEADER_SIZE > map.limit()) {
+                    throw new IOException("blocco incompleto nello snapshot binario");
+                }
+                int records = map.getInt(position);
+                int newStrings = map.getInt(position + 4);
+                if (records < 0 || newStrings < 0) {
+                    throw new IOException("blocco non valido nello snapshot binario");
+                }
+                position += BLOCK_HEADER_SIZE;
+                for (int i = 0; i < newStrings; i++) {
+                    if (position + 2 > map.limit()) {
+                        throw new IOException("tabella delle stringhe incompleta");
+                    }
+                    stringOffsets.add(position);
+                    position += 2 + (map.getShort(position) & 0xFFFF);
+                }
+                if (position > map.limit() || (long) records * RECORD_SIZE > map.limit() - position) {
+                    throw new IOException("record incompleti nello snapshot binario");
+                }
+                for (int i = 0, base = position; i < records; i++, base += RECORD_SIZE) {
+                    for (int field = 8; field <= 16; field += 4) {
+                        int index = map.getInt(base + field);
+                        if (index < 0 || index >= stringOffsets.size()) {
+                            throw new IOException("indice di stringa non valido nel record " + i);
+                        }
                     }
-                } catch (InterruptedException e) {
-                    scheduler.shutdownNow(); // Se viene interrotta l'attesa, interrompi forzatamente i thread
                 }
+                blocks.add(new int[] {position, records});
+                position += records * RECORD_SIZE;
             }
+        }
 
-            try {
-                // Persisto i dati in formato JSON
-                saveDataToJson(HOTELS_JSON_FILE, USERS_JSON_FILE,REVIEWS_JSON_FILE);
-            } catch (IOException e) {
-                System.err.println("[SERVER] Errore durante il salvataggio dei dati: " + e.getMessage());
+        private static String string(MappedByteBuffer map, int[] offsets, String[] strings, int index) {
+            if (strings[index] == null) {
+                strings[index] = decodeString(map, offsets[index]);
             }
+            return strings[index];
+        }
 
-            try {
-                // Chiudo le risorse del server
-                if (serverSocketChannel != null && serverSocketChannel.isOpen()) {
-                    serverSocketChannel.close();
-                    System.out.println("[SERVER] ServerSocketChannel chiuso.");
+        private static String decodeString(MappedByteBuffer map, int offset) {
+            ByteBuffer bytes = map.duplicate();
+            bytes.position(offset + 2).limit(offset + 2 + (map.getShort(offset) & 0xFFFF));
+            return StandardCharsets.UTF_8.decode(bytes).toString();
+        }
+
+        // Scrive un blocco alla posizione corrente del canale: prima le stringhe non ancora presenti nella tabella, poi i record
+        private static void writeBlock(FileChannel channel, Map<String, Integer> strings, List<Review> reviews) throws IOException {
+            List<String> newStrings = new ArrayList<>();
+            for (Review review : reviews) {
+                for (String string : new String[] {review.getUserId(), review.getHotelName(), review.getCity()}) {
+                    if (!strings.containsKey(string)) {
+                        strings.put(string, strings.size());
+                        newStrings.add(string);
+                    }
                 }
-                if (selector != null && selector.isOpen()) {
-                    selector.close();
-                    System.out.println("[SERVER] Selector chiuso.");
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            buffer.putInt(reviews.size()).putInt(newStrings.size());
+            for (String string : newStrings) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                if (bytes.length > 0xFFFF) {
+                    throw new IOException("stringa troppo lunga per lo snapshot binario");
                 }
-            } 
-            catch (IOException e) {
-                System.err.println("[SERVER] Errore durante la chiusura delle risorse:"+ e.getMessage());
+                if (buffer.remaining() < 2 + bytes.length) {
+                    flush(channel, buffer);
+                }
+                buffer.putShort((short) bytes.length).put(bytes);
+            }
+            for (Review review : reviews) {
+                if (buffer.remaining() < RECORD_SIZE) {
+                    flush(channel, buffer);
+                }
+                Ratings singleScores = review.getSingleScores();
+                buffer.putLong(review.getTime())
+                        .putInt(strings.get(review.getUserId()))
+                        .putInt(strings.get(review.getHotelName()))
+                        .putInt(strings.get(review.getCity()))
+                        .putInt(review.getGlobalScore())
+                        .putFloat((float) singleScores.getCleaning())
+                        .putFloat((float) singleScores.getPosition())
+                        .putFloat((float) singleScores.getServices())
+                        .putFloat((float) singleScores.getQuality());
             }
+            flush(channel, buffer);
+        }
 
-            System.out.println("[SERVER] Terminato.");
+        private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
         }
+    }
 
-        private void saveDataToJson(String HOTELS_JSON_FILE, String USERS_JSON_FILE, String REVIEWS_JSON_FILE) throws IOException {
-            // Prima di salvare i dati, setto tutti gli utenti come disconnessi
-            setAllLoggedOutUsers();
+    private static class SnapshotManifest {
+        // Generazione dello snapshot e dimensione di ciascun file che ne fa parte
+        private long generation;
+        private LinkedHashMap<String, Long> files = new LinkedHashMap<>();
+        // Posizione da cui accodare le recensioni nuove nei file che le ricevono sul posto: dopo l'ultimo elemento
+        // dell'array JSON (seguito solo dalla chiusura) oppure la fine dello snapshot binario
+        private LinkedHashMap<String, Long> appendOffsets = new LinkedHashMap<>();
+        // Byte scritti per questa generazione: i file riscritti per intero e le code accodate sul posto, i file invariati
+        // non vengono riscritti (non salvato nel manifest)
+        private transient long bytesWritten;
+
+        public SnapshotManifest(long generation) {
+            this.generation = generation;
+        }
 
-            // Eseguo l'aggiornamento dei dati nei file JSON
-            DataUpdater dataUpdater = new DataUpdater();
-            dataUpdater.run();
+        // written: byte scritti per il file in questa generazione
+        public void addFile(String file, long size, long written) {
+            files.put(file, size);
+            bytesWritten += written;
         }
 
-        private static void setAllLoggedOutUsers() {
-            // Itero attraverso gli utenti registrati e li setto tutti come disconnessi
-            for (Map.Entry<String, User> entry : registeredUsers.entrySet()) {
-                User user = entry.getValue();
-                if (user.isLoggedIn()) {
-                    user.setLoggedIn(false);
-                    user.setIdClient(-1);
-                }
+        // Riporta il file invariato dallo snapshot precedente
+        public void keepFile(String file, SnapshotManifest previous) {
+            addFile(file, previous.getFiles().get(file), 0);
+            long appendOffset = previous.getAppendOffset(file);
+            if (appendOffset >= 0) {
+                setAppendOffset(file, appendOffset);
             }
         }
-    }
-    private static class HotelRankingUpdater implements Runnable {
-    
-        @Override
-        public void run() {
-            // Iterazione per ogni città nella mappa
-            for (Map.Entry<String, ConcurrentLinkedQueue<Hotel>> entry : hotelsByCity.entrySet()) {
-                String city = entry.getKey(); // Ottiene il nome della città
-                ConcurrentLinkedQueue<Hotel> hotels = entry.getValue(); // Ottiene gli hotel per la città corrente
 
-                // Ottiene il primo hotel nella coda
-                Hotel firstHotel = hotels.peek();
+        public void setAppendOffset(String file, long offset) {
+            if (appendOffsets == null) {
+                appendOffsets = new LinkedHashMap<>();
+            }
+            appendOffsets.put(file, offset);
+        }
 
-                if (firstHotel != null) {
-                    // Esegui il sort() e ottieni il potenziale nuovo hotel primo classificato
-                    sort(hotels);
-                    Hotel potentialNewTopHotel = hotels.peek(); // Ottiene il nuovo hotel primo classificato dopo il sort
+        // -1 se il file non riceve accodamenti (o il manifest è di una versione che non li registrava)
+        public long getAppendOffset(String file) {
+            Long offset = appendOffsets == null ? null : appendOffsets.get(file);
+            return offset == null ? -1 : offset;
+        }
 
-                    // Verifica se c'è un nuovo hotel primo classificato e se è diverso dal precedente
-                    if (potentialNewTopHotel != null && potentialNewTopHotel.getId() != firstHotel.getId()) {
-                        sendUDPMessage("Aggiornamento rankking locale per la citta: "+city+", nuovo primo Hotel:"+potentialNewTopHotel.getName(), udpAddress,udpPort);
-                    }
-                }
+        // Verifica che il file corrente sia ancora quello registrato nel manifest
+        public boolean matches(String file) {
+            Long size = files.get(file);
+            try {
+                return size != null && Files.size(Paths.get(file)) == size;
+            } catch (IOException e) {
+                return false;
             }
         }
 
-    
-        private static void sendUDPMessage(String message, String ipAddress, int port) {
-            // Crea una nuova istanza di MulticastSocket
-            try (MulticastSocket multicastSocket = new MulticastSocket(port)) {
-                // Ottiene l'indirizzo IP del gruppo multicast
-                InetAddress group = InetAddress.getByName(ipAddress);
-
-                // Converte il messaggio in un array di byte
-                byte[] msg = message.getBytes();
-
-                // Crea un DatagramPacket con i dati del messaggio, l'indirizzo del gruppo e la porta
-                DatagramPacket packet = new DatagramPacket(msg, msg.length, group, port);
-
-                // Invia il pacchetto attraverso il MulticastSocket
-                multicastSocket.send(packet);
-            } catch (IOException e){
-                System.err.println("Impossibile inviare il messaggio");
-                e.printStackTrace();
-                System.exit(1);
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        // Dimensione complessiva dei file dello snapshot
+        public long getTotalSize() {
+            long total = 0;
+            for (long size : files.values()) {
+                total += size;
             }
-            // Il MulticastSocket viene chiuso automaticamente grazie all'uso del try-with-resources
-        }   
+            return total;
+        }
 
+        public long getGeneration() {
+            return generation;
+        }
+
+        public Map<String, Long> getFiles() {
+            return files;
+        }
     }
-    private static class DataUpdater implements Runnable {
 
-        @Override
-        public void run() {
-            // Aggiornamento dei dati degli hotel
-            writeHotelsToJson();
+    // File che compongono lo snapshot, il binario delle recensioni solo se abilitato
+    private static String[] snapshotFiles() {
+        return binarySnapshotEnabled
+                ? new String[] {HOTELS_JSON_FILE, USERS_JSON_FILE, REVIEWS_JSON_FILE, REVIEWS_BINARY_FILE}
+                : new String[] {HOTELS_JSON_FILE, USERS_JSON_FILE, REVIEWS_JSON_FILE};
+    }
+
+    // Percorso del file temporaneo di una generazione, nella stessa cartella del file così che la rinomina sia atomica
+    private static Path tempPath(String fileName, long generation) {
+        Path path = Paths.get(fileName);
+        return path.resolveSibling(path.getFileName() + "." + generation + ".tmp");
+    }
 
-            // Aggiornamento dei dati degli utenti
-            writeUsersToJson();
+    private static void moveAtomically(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
 
-            // Aggiornamento dei dati delle recensioni
-            writeReviewsToJson();
+    // Rende durevole la rinomina forzando la cartella che contiene il file (non supportato su tutti i sistemi)
+    private static void syncDirectory(Path file) {
+        try (FileChannel directory = FileChannel.open(file.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            // Il sistema non permette l'fsync delle cartelle, la rinomina resta comunque atomica
+        }
+    }
 
-            // Stampa esecuzione dell'aggiornamento
-            synchronized(printSyncLock){
-                System.out.println("[SERVER] Eseguito persistenza dei dati su Json");
+    // Sostituisce i file correnti con quelli temporanei della generazione del manifest ancora presenti
+    private static void installSnapshot(SnapshotManifest manifest) throws IOException {
+        for (String file : manifest.getFiles().keySet()) {
+            Path temp = tempPath(file, manifest.getGeneration());
+            if (Files.exists(temp)) {
+                moveAtomically(temp, Paths.get(file));
+                syncDirectory(Paths.get(file));
             }
         }
+    }
 
-        // Metodo per scrivere i dati dalla mappa hotelsByCity in un file JSON
-        private static void writeHotelsToJson() {
-            File file = new File(HOTELS_JSON_FILE);
-            // Verifica se il file esiste
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
-                if (!file.exists()) {
-                    throw new FileNotFoundException("File non trovato: " + HOTELS_JSON_FILE);
+    // Riporta i file accodati sul posto alla versione confermata dal manifest: elimina i byte accodati oltre la dimensione
+    // confermata e, se la chiusura dell'array JSON dopo la posizione di accodamento è stata sovrascritta, la riscrive
+    // con la stessa lunghezza. Restituisce i file ripristinati
+    private static List<String> restoreAppendedFiles(SnapshotManifest manifest) throws IOException {
+        List<String> restored = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : manifest.getFiles().entrySet()) {
+            long size = entry.getValue();
+            long appendOffset = manifest.getAppendOffset(entry.getKey());
+            Path path = Paths.get(entry.getKey());
+            if (appendOffset < 0 || appendOffset > size || !Files.exists(path)) {
+                continue;
+            }
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                if (channel.size() < size) {
+                    // Non è il file dello snapshot, viene segnalato dal controllo all'avvio
+                    continue;
                 }
-            
-                // Converte hotelsByCity in una lista di oggetti Hotel
-                ArrayList<Hotel> hotelsList = new ArrayList<>();
-                for (Map.Entry<String, ConcurrentLinkedQueue<Hotel>> entry : hotelsByCity.entrySet()) {
-                    ConcurrentLinkedQueue<Hotel> hotelSet = entry.getValue();
-                    hotelsList.addAll(hotelSet);
-                }
-
-                // Converte hotelsList in formato JSON e scrive nel file specificato   
-                Gson gson = new GsonBuilder().setPrettyPrinting().create();
-                gson.toJson(hotelsList, writer);
-            } catch (FileNotFoundException e) {
-                System.err.println("Errore: File non trovato: " + HOTELS_JSON_FILE);
-                e.printStackTrace();
-                System.exit(1);
-            } catch (JsonIOException e) {
-                System.err.println("Errore durante la serializzazione JSON.");
-                e.printStackTrace();
-                System.exit(1);
-            } catch (Exception e) {
-                System.err.println("Errore imprevisto durante la scrittura del file JSON");
-                e.printStackTrace();
-                System.exit(1);
+                ByteBuffer closing = ByteBuffer.allocate((int) (size - appendOffset));
+                while (closing.hasRemaining() && channel.read(closing, appendOffset + closing.position()) >= 0) {
+                    // Legge l'intera chiusura confermata
+                }
+                boolean closingIntact = closing.capacity() == 0 || new String(closing.array(), StandardCharsets.UTF_8).trim().equals("]");
+                if (channel.size() == size && closingIntact) {
+                    continue;
+                }
+                channel.truncate(size);
+                if (closing.capacity() > 0) {
+                    closing.clear();
+                    while (closing.remaining() > 1) {
+                        closing.put((byte) '\n');
+                    }
+                    closing.put((byte) ']').flip();
+                    while (closing.hasRemaining()) {
+                        channel.write(closing, appendOffset + closing.position());
+                    }
+                }
+                channel.force(true);
+                restored.add(entry.getKey());
             }
         }
+        return restored;
+    }
 
-        // Metodo per scrivere i dati dalla mappa registeredUsers in un file JSON
-        private static void writeUsersToJson() {
-            File file = new File(USERS_JSON_FILE);
-            // Verifica se il file esiste
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
-                if (!file.exists()) {
-                    throw new FileNotFoundException("File non trovato: " + USERS_JSON_FILE);
+    // All'avvio completa l'ultimo snapshot confermato dal manifest ed elimina i file temporanei di snapshot mai confermati
+    private static void recoverSnapshot() {
+        Path manifestPath = Paths.get(SNAPSHOT_MANIFEST_FILE);
+        SnapshotManifest manifest = null;
+        try {
+            if (Files.exists(manifestPath)) {
+                try (Reader reader = Files.newBufferedReader(manifestPath, StandardCharsets.UTF_8)) {
+                    manifest = diskGson.fromJson(reader, SnapshotManifest.class);
                 }
-            
-                // Converting registeredUsers to an ArrayList
-                ArrayList<User> userList = new ArrayList<>(registeredUsers.values());
-
-                // Converte hotelsList in formato JSON e scrive nel file specificato   
-                Gson gson = new GsonBuilder().setPrettyPrinting().create();
-                gson.toJson(userList, writer);
-            } catch (FileNotFoundException e) {
-                System.err.println("Errore: File non trovato: " + USERS_JSON_FILE);
-                e.printStackTrace();
-                System.exit(1);
-            } catch (JsonIOException e) {
-                System.err.println("Errore durante la serializzazione JSON");
-                 e.printStackTrace();
-                System.exit(1);
-            } catch (Exception e) {
-                System.err.println("Errore imprevisto durante la scrittura del file JSON");
-                e.printStackTrace();
-                System.exit(1);
             }
-        }
-    
-        // Metodo per scrivere i dati dalla coda reviews in un file JSON
-        private static void writeReviewsToJson() {
-            File file = new File(REVIEWS_JSON_FILE);
-            // Verifica se il file esiste
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
-                if (!file.exists()) {
-                    throw new FileNotFoundException("File non trovato: " + REVIEWS_JSON_FILE);
+            if (manifest != null) {
+                installSnapshot(manifest);
+                // Un crash durante l'accodamento sul posto lascia byte non confermati in coda ai file delle recensioni
+                for (String file : restoreAppendedFiles(manifest)) {
+                    System.out.println("[SERVER] Eliminate da " + file + " le recensioni accodate non confermate dallo snapshot " + manifest.getGeneration());
                 }
-
-                // Converte reviews in una lista di oggetti Review
-                // Lista che conterrà tutte le recensioni
-                ArrayList<Review> reviewsList = new ArrayList<>();
-                for (Map.Entry<String, ConcurrentLinkedQueue<Review>> entry : reviews.entrySet()) {
-                    ConcurrentLinkedQueue<Review> reviewsSet = entry.getValue();
-                    reviewsList.addAll(reviewsSet);
+                for (String file : manifest.getFiles().keySet()) {
+                    if (Files.exists(Paths.get(file)) && !manifest.matches(file)) {
+                        System.err.println("[SERVER] Attenzione: " + file + " non corrisponde allo snapshot " + manifest.getGeneration());
+                    }
+                }
+                lastSnapshot = manifest;
+            }
+            for (String file : new String[] {HOTELS_JSON_FILE, USERS_JSON_FILE, REVIEWS_JSON_FILE, REVIEWS_BINARY_FILE, SNAPSHOT_MANIFEST_FILE}) {
+                Path path = Paths.get(file);
+                try (DirectoryStream<Path> temps = Files.newDirectoryStream(path.toAbsolutePath().getParent(), path.getFileName() + ".*.tmp")) {
+                    for (Path temp : temps) {
+                        Files.deleteIfExists(temp);
+                    }
                 }
-
-                // Converte hotelsList in formato JSON e scrive nel file specificato   
-                Gson gson = new GsonBuilder().setPrettyPrinting().create();
-                gson.toJson(reviewsList, writer);
-            } catch (FileNotFoundException e) {
-                System.err.println("Errore: File non trovato: " + REVIEWS_JSON_FILE);
-                e.printStackTrace();
-                System.exit(1);
-            } catch (JsonIOException e) {
-                System.err.println("Errore durante la serializzazione JSON");
-                e.printStackTrace();
-                System.exit(1);
-            } catch (Exception e) {
-                System.err.println("Errore imprevisto durante la scrittura del file JSON");
-                e.printStackTrace();
-                System.exit(1);
             }
+        } catch (IOException | JsonSyntaxException e) {
+            System.err.println("Errore durante il ripristino dello snapshot: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
         }
-
     }
 
 
 
 
-
     /* UTILITY GENERALI*/
     private static void readConfig() throws FileNotFoundException, IOException {
         // Crea un nuovo oggetto File per il file di configurazione ed un FileInputStream per leggerlo
@@ -1710,19 +4765,123 @@ public class ServerHotelierMain {
         // Legge e assegna le proprietà da file alle variabili definite globalmente o all'interno del metodo
         tcpPort = Integer.parseInt(prop.getProperty("tcpPort"));
         bufSize = Integer.parseInt(prop.getProperty("bufSize"));
+        reactorThreads = Integer.parseInt(prop.getProperty("reactorThreads", "0"));
+        requestExecutorThreads = Integer.parseInt(prop.getProperty("requestExecutorThreads", "0"));
+        useVirtualThreads = Boolean.parseBoolean(prop.getProperty("useVirtualThreads", "false"));
+        bufferPoolMaxPerClass = Integer.parseInt(prop.getProperty("bufferPoolMaxPerClass", "256"));
+        statsReportDelay = Integer.parseInt(prop.getProperty("statsReportDelay", "0"));
+        compactWireFormat = Boolean.parseBoolean(prop.getProperty("compactWireFormat", "false"));
+        responseCacheEnabled = Boolean.parseBoolean(prop.getProperty("responseCacheEnabled", "true"));
+        responseCacheMaxBytes = Long.parseLong(prop.getProperty("responseCacheMaxBytes", "67108864"));
+        maxPageSize = Integer.parseInt(prop.getProperty("maxPageSize", "100"));
         exitMessage = prop.getProperty("exitMessage");
         periodicDataUpdaterDelay = Integer.parseInt(prop.getProperty("periodicDataUpdaterDelay"));
-        hotelRankingUpdateFrequency = Integer.parseInt(prop.getProperty("hotelRankingUpdateFrequency"));
+        rankingDebounceDelay = Long.parseLong(prop.getProperty("rankingDebounceDelay", "200"));
         timeThreshold = Long.parseLong(prop.getProperty("timeThreshold"));
+        maxBatchItems = Integer.parseInt(prop.getProperty("maxBatchItems", "1000"));
+        relevanceHalfLife = Long.parseLong(prop.getProperty("relevanceHalfLife", "86400000"));
+        relevanceDecayRate = Math.log(2) / Math.max(1, relevanceHalfLife);
         udpPort = Integer.parseInt(prop.getProperty("udpPort"));
         udpAddress = prop.getProperty("udpAddress");
+        udpMaxDatagramSize = Integer.parseInt(prop.getProperty("udpMaxDatagramSize", "1024"));
         maxDelay = Long.parseLong(prop.getProperty("maxDelay"));
         HOTELS_JSON_FILE = prop.getProperty("HOTELS_JSON_FILE");
         USERS_JSON_FILE = prop.getProperty("USERS_JSON_FILE");
         REVIEWS_JSON_FILE = prop.getProperty("REVIEWS_JSON_FILE");
+        SNAPSHOT_MANIFEST_FILE = prop.getProperty("SNAPSHOT_MANIFEST_FILE", "../Snapshot.manifest");
+        binarySnapshotEnabled = Boolean.parseBoolean(prop.getProperty("binarySnapshotEnabled", "true"));
+        REVIEWS_BINARY_FILE = prop.getProperty("REVIEWS_BINARY_FILE", "../Reviews.bin");
+        WAL_FILE = prop.getProperty("WAL_FILE", "../Journal.wal");
+        walEnabled = Boolean.parseBoolean(prop.getProperty("walEnabled", "true"));
+        walSyncInterval = Long.parseLong(prop.getProperty("walSyncInterval", "10"));
     
         input.close(); // Chiude il flusso dopo aver utilizzato il file di configurazione
     }
+    private static ExecutorService createRequestExecutor() {
+        if (useVirtualThreads) {
+            // I virtual thread sono disponibili solo da Java 21, si recuperano tramite reflection per compilare anche con JDK precedenti
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("[SERVER] Virtual thread non disponibili in questa JVM, uso un pool di thread");
+            }
+        }
+        return Executors.newFixedThreadPool(Math.max(1, requestExecutorThreads));
+    }
+    // Riesegue i segmenti del log rimasti dall'ultima esecuzione, restituisce gli hotel che hanno ricevuto recensioni.
+    // I record già compresi negli snapshot JSON vengono ignorati, quindi la riesecuzione può essere ripetuta senza effetti.
+    private static Set<Hotel> replayWriteAheadLog() {
+        Set<Hotel> replayedHotels = new HashSet<>();
+        int[] replayed = new int[2];
+        try {
+            WriteAheadLog.replay(WAL_FILE, (type, payload) -> {
+                switch (type) {
+                    case WriteAheadLog.USER_REGISTERED:
+                        User user = logGson.fromJson(payload, User.class);
+                        if (registeredUsers.putIfAbsent(user.getUsername(), user) == null) {
+                            usersDirty.set(true);
+                            replayed[0]++;
+                        }
+                        break;
+                    case WriteAheadLog.REVIEW_INSERTED:
+                        Review review = logGson.fromJson(payload, Review.class);
+                        Hotel hotel = hotelIndex.find(review.getCity(), review.getHotelName());
+                        String key = reviewTimeKey(review.getUserId(), review.getHotelName());
+                        // Una recensione non più recente dell'ultima dello stesso utente per lo stesso hotel è già nello snapshot
+                        if (hotel == null || review.getTime() <= lastReviewTimes.getOrDefault(key, Long.MIN_VALUE)) {
+                            break;
+                        }
+                        reviews.add(review);
+                        pendingReviews.add(review);
+                        lastReviewTimes.merge(key, review.getTime(), Math::max);
+                        User author = registeredUsers.get(review.getUserId());
+                        if (author != null) {
+                            author.increaseNumberOfReviewsWritten();
+                        }
+                        hotel.addReviewScores(review);
+                        replayedHotels.add(hotel);
+                        replayed[1]++;
+                        break;
+                    default:
+                        System.err.println("[SERVER] Record sconosciuto nel log delle scritture: " + type);
+                }
+            });
+        } catch (IOException | JsonSyntaxException e) {
+            System.err.println("Errore durante la lettura del log delle scritture: " + WAL_FILE);
+            e.printStackTrace();
+            System.exit(1);
+        }
+        if (replayed[0] + replayed[1] > 0) {
+            System.out.println("[SERVER] Riapplicati dal log " + replayed[0] + " utenti e " + replayed[1] + " recensioni");
+        }
+        return replayedHotels;
+    }
+    // Carica in parallelo hotel, utenti e recensioni: i tre file sono indipendenti e ogni caricatore inserisce i record
+    // nelle proprie strutture man mano che li legge. Le classifiche vengono ricalcolate una sola volta alla fine.
+    private static void loadData() {
+        long startTime = System.nanoTime();
+        ExecutorService loaders = Executors.newFixedThreadPool(3);
+        try {
+            CompletableFuture.allOf(
+                CompletableFuture.runAsync(ServerHotelierMain::loadHotelsFromJSON, loaders),
+                CompletableFuture.runAsync(ServerHotelierMain::loadUsersFromJSON, loaders),
+                CompletableFuture.runAsync(() -> {
+                    if (!loadReviewsFromBinary()) {
+                        loadReviewsFromJSON();
+                    }
+                }, loaders)
+            ).join();
+        } catch (CompletionException e) {
+            System.err.println("Errore imprevisto durante il caricamento dei dati: " + e.getCause().getMessage());
+            e.getCause().printStackTrace();
+            System.exit(1);
+        } finally {
+            loaders.shutdown();
+        }
+        dataLoaded = true;
+        System.out.println("[SERVER] Dati caricati in " + (System.nanoTime() - startTime) / 1_000_000 + " ms");
+    }
     private static void loadHotelsFromJSON() {
         try {
             File file = new File(HOTELS_JSON_FILE);
@@ -1736,25 +4895,29 @@ public class ServerHotelierMain {
                 throw new EmptyFileException("il file è vuoto: " + HOTELS_JSON_FILE);
             }
 
-            // Creazione di un'istanza Gson per la gestione della conversione da JSON a oggetti Java
-            Gson gson = new Gson();
-            // Definizione del tipo di dato per la deserializzazione del JSON in una lista di Hotel
-            Type listType = new TypeToken<ArrayList<Hotel>>() {}.getType();
-            // Deserializzazione del contenuto del file JSON in una lista di oggetti Hotel utilizzando Gson
-            ArrayList<Hotel> hotelsList = gson.fromJson(new BufferedReader(new FileReader(file)), listType);
-
-
-            // Riempimento della struttura dati hotelsByCity
-            for (Hotel hotel : hotelsList) {
+            // Deserializzazione degli hotel uno alla volta e raggruppamento per città,
+            // la classifica di ogni città viene costruita una sola volta
+            Map<String, List<Hotel>> hotelsGroupedByCity = new HashMap<>();
+            readJsonArray(file, Hotel.class, hotel -> {
                 String city = hotel.getCity();
-                // Verifica se la mappa contiene già la citta
-                hotelsByCity.computeIfAbsent(city, k -> new ConcurrentLinkedQueue<>()); // Inizializza la coda se la città non è presente nella mappa
-                // Aggiunge l'hotel al set per la citta corrispondente
-                hotelsByCity.get(city).add(hotel);
+                // Aggiunge l'hotel al gruppo per la citta corrispondente
+                hotelsGroupedByCity.computeIfAbsent(city, k -> new ArrayList<>()).add(hotel);
+                // Aggiunge l'hotel all'indice per (città, nome) e per id e all'indice dei servizi
+                hotelIndex.add(hotel);
+                serviceIndex.add(hotel);
+                // Prepara i totali delle recensioni a partire dalle medie salvate
+                hotel.initScores();
 
                 // Questa serve per normalizzare i punteggi per fare ranking
                 cityStatsMap.computeIfAbsent(city, k -> new CityStats()); // Inizializza le statistiche della città se non sono presenti nella mappa
+            });
+
+            // Riempimento della struttura dati hotelsByCity con la classifica ordinata di ogni città
+            for (Map.Entry<String, List<Hotel>> entry : hotelsGroupedByCity.entrySet()) {
+                hotelsByCity.put(entry.getKey(), new CityRanking(entry.getValue()));
             }
+            // Costruzione dell'indice per l'autocompletamento dei nomi, per città e per tutte le città
+            hotelNameIndex.build(hotelsGroupedByCity);
 
         } catch (FileNotFoundException e) {
             System.err.println("Errore: File non trovato: " + HOTELS_JSON_FILE);
@@ -1787,20 +4950,12 @@ public class ServerHotelierMain {
                 throw new EmptyFileException("il file è vuoto: " + USERS_JSON_FILE);
             }
 
-            // Crea un'istanza di Gson per la gestione della conversione da JSON a oggetti Java
-            Gson gson = new Gson();
-            // Definisce il tipo di dato per la deserializzazione del JSON in una lista di oggetti User
-            Type listType = new TypeToken<ArrayList<User>>() {}.getType();
-            // Legge i dati dal file JSON e li deserializza in una lista di oggetti User utilizzando Gson
-            ArrayList<User> usersList = gson.fromJson(new BufferedReader(new FileReader(file)), listType);
-
-
-            // Riempimento della struttura dati usersList
-            for (User user : usersList) {
+            // Legge gli utenti dal file JSON uno alla volta e li inserisce in registeredUsers
+            readJsonArray(file, User.class, user -> {
                 String username = user.getUsername();
 
                 registeredUsers.putIfAbsent(username, user);
-            }
+            });
         } catch (FileNotFoundException e) {
             System.err.println("Errore di I/O durante la lettura del file: " + USERS_JSON_FILE);
             e.printStackTrace();
@@ -1819,6 +4974,42 @@ public class ServerHotelierMain {
             System.exit(1);
         }
     }
+    // Legge un array JSON in streaming passando ogni elemento al consumer appena deserializzato
+    private static <T> void readJsonArray(File file, Class<T> type, Consumer<T> consumer) throws IOException {
+        TypeAdapter<T> adapter = diskGson.getAdapter(type);
+        try (JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)))) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                consumer.accept(adapter.read(reader));
+            }
+            reader.endArray();
+        } catch (MalformedJsonException | IllegalStateException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+    private static void addLoadedReview(Review review) {
+        // Aggiungi la recensione all'archivio
+        reviews.add(review);
+        // Mantiene per ogni coppia (utente, hotel) l'istante della recensione più recente
+        lastReviewTimes.merge(reviewTimeKey(review.getUserId(), review.getHotelName()), review.getTime(), Math::max);
+    }
+    // Carica le recensioni dallo snapshot binario se è quello dell'ultimo snapshot confermato insieme a Reviews.json;
+    // un Reviews.json modificato a mano viene invece importato, e al prossimo snapshot il binario viene riscritto
+    private static boolean loadReviewsFromBinary() {
+        if (!binarySnapshotEnabled || lastSnapshot == null || !lastSnapshot.matches(REVIEWS_BINARY_FILE) || !lastSnapshot.matches(REVIEWS_JSON_FILE)) {
+            return false;
+        }
+        long startTime = System.nanoTime();
+        int count;
+        try {
+            count = ReviewSnapshotFile.load(Paths.get(REVIEWS_BINARY_FILE), ServerHotelierMain::addLoadedReview);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[SERVER] Snapshot binario non leggibile, caricamento da " + REVIEWS_JSON_FILE + ": " + e.getMessage());
+            return false;
+        }
+        System.out.println("[SERVER] Caricate " + count + " recensioni da " + REVIEWS_BINARY_FILE + " in " + (System.nanoTime() - startTime) / 1_000_000 + " ms");
+        return true;
+    }
     private static void loadReviewsFromJSON() {
         try {
             File file = new File(REVIEWS_JSON_FILE);
@@ -1833,22 +5024,8 @@ public class ServerHotelierMain {
                 throw new EmptyFileException("Il file è vuoto: " + REVIEWS_JSON_FILE);
             }
 
-            // Crea un'istanza di Gson per la gestione della conversione da JSON a oggetti Java
-            Gson gson = new Gson();
-            // Definisce il tipo di dato per la deserializzazione del JSON in una lista di oggetti Review
-            Type listType = new TypeToken<ArrayList<Review>>() {}.getType();
-            // Legge i dati dal file JSON e li deserializza in una lista di oggetti Review utilizzando Gson
-            ArrayList<Review> reviewsList = gson.fromJson(new BufferedReader(new FileReader(file)), listType);
-
-
-            // Riempimento della struttura dati reviewsList
-            for (Review review : reviewsList) {
-                String hotelName = review.getHotelName();
-                // Usa computeIfAbsent() per aggiungere la recensione alla mappa
-                reviews.computeIfAbsent(hotelName, k -> new ConcurrentLinkedQueue<>());
-                // Aggiungi la recensione al set per l'hotel corrispondente
-                reviews.get(hotelName).add(review);
-            }
+            // Legge le recensioni dal file JSON una alla volta, senza materializzare l'intera lista
+            readJsonArray(file, Review.class, ServerHotelierMain::addLoadedReview);
 
         } catch (FileNotFoundException e) {
             System.err.println("Errore di I/O durante la lettura del file: " + REVIEWS_JSON_FILE);
@@ -1868,18 +5045,6 @@ public class ServerHotelierMain {
             System.exit(1);
         }
     }
-    private static void sort(ConcurrentLinkedQueue<Hotel> hotels) {
-        List<Hotel> hotelList = new ArrayList<>(hotels);
-
-        // Ordina la lista di Hotel
-        Collections.sort(hotelList);
-
-        // Svuota la ConcurrentLinkedQueue
-        hotels.clear();
-
-        // Aggiungi gli elementi ordinati dalla lista alla ConcurrentLinkedQueue
-        hotels.addAll(hotelList);
-    }
     
 
     /* ECCEZIONI */